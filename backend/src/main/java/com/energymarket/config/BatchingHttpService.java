@@ -0,0 +1,174 @@
+package com.energymarket.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import org.web3j.protocol.http.HttpService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// HttpService gộp các request JSON-RPC phát ra đồng thời (trong một cửa sổ ngắn) thành một batch payload.
+// Contract wrapper sinh tự động vẫn gọi send() như cũ, không cần biết request được gộp.
+// Request giống hệt nhau (cùng method + params) đang chờ kết quả thì dùng chung một lần gọi (single-flight).
+@Slf4j
+public class BatchingHttpService extends HttpService {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long windowMicros;
+    private final int maxBatchSize;
+    private final Set<String> batchedMethods;
+    private final boolean singleFlight;
+    // method + params -> kết quả của request đầu tiên đang bay
+    private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService ioExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Object lock = new Object();
+    private List<Pending> pending = new ArrayList<>();
+
+    public BatchingHttpService(
+        String url,
+        OkHttpClient httpClient,
+        long windowMicros,
+        int maxBatchSize,
+        Set<String> batchedMethods,
+        boolean singleFlight
+    ) {
+        super(url, httpClient);
+        this.windowMicros = windowMicros;
+        this.maxBatchSize = maxBatchSize;
+        this.batchedMethods = batchedMethods;
+        this.singleFlight = singleFlight;
+    }
+
+    @Override
+    protected InputStream performIO(String payload) throws IOException {
+        // Batch do web3j.newBatch() tạo sẵn (mảng JSON) và các method không nằm trong danh sách: gửi thẳng
+        JsonNode request = payload.startsWith("[") ? null : mapper.readTree(payload);
+        if (request == null || !batchedMethods.contains(request.path("method").asText())) {
+            return super.performIO(payload);
+        }
+
+        String id = request.path("id").asText();
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        String key = request.path("method").asText() + ":" + request.path("params");
+
+        CompletableFuture<byte[]> shared = singleFlight ? inFlight.putIfAbsent(key, response) : null;
+        if (shared == null) {
+            if (singleFlight) {
+                response.whenComplete((result, error) -> inFlight.remove(key, response));
+            }
+            enqueue(new Pending(id, payload, response));
+        }
+
+        try {
+            if (shared == null) {
+                return new ByteArrayInputStream(response.get());
+            }
+            // Dùng lại kết quả của request đang bay, chỉ đổi id cho khớp request của mình
+            ObjectNode node = (ObjectNode) mapper.readTree(shared.get());
+            node.set("id", request.get("id"));
+            return new ByteArrayInputStream(mapper.writeValueAsBytes(node));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batched response", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    private void enqueue(Pending call) {
+        List<Pending> ready = null;
+        synchronized (lock) {
+            pending.add(call);
+            if (pending.size() >= maxBatchSize) {
+                ready = pending;
+                pending = new ArrayList<>();
+            } else if (pending.size() == 1) {
+                // Request đầu tiên của cửa sổ: hẹn giờ flush, đảm bảo độ trễ tối đa
+                flushScheduler.schedule(this::flushPending, windowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (ready != null) {
+            List<Pending> batch = ready;
+            ioExecutor.execute(() -> send(batch));
+        }
+    }
+
+    private void flushPending() {
+        List<Pending> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        ioExecutor.execute(() -> send(batch));
+    }
+
+    private void send(List<Pending> batch) {
+        if (batch.size() == 1) {
+            Pending single = batch.get(0);
+            try (InputStream in = super.performIO(single.payload())) {
+                single.response().complete(in.readAllBytes());
+            } catch (Exception e) {
+                single.response().completeExceptionally(e);
+            }
+            return;
+        }
+
+        try {
+            StringBuilder payload = new StringBuilder("[");
+            for (int i = 0; i < batch.size(); i++) {
+                payload.append(i == 0 ? "" : ",").append(batch.get(i).payload());
+            }
+            payload.append("]");
+
+            JsonNode responses;
+            try (InputStream in = super.performIO(payload.toString())) {
+                responses = mapper.readTree(in);
+            }
+            if (responses == null || !responses.isArray()) {
+                throw new IOException("Unexpected batch response: " + responses);
+            }
+
+            // Node có thể trả về không đúng thứ tự, ghép theo id
+            Map<String, JsonNode> byId = new HashMap<>();
+            responses.forEach(node -> byId.put(node.path("id").asText(), node));
+            for (Pending call : batch) {
+                JsonNode node = byId.get(call.id());
+                if (node == null) {
+                    call.response().completeExceptionally(new IOException("No response for request id " + call.id()));
+                } else {
+                    call.response().complete(mapper.writeValueAsBytes(node));
+                }
+            }
+            log.debug("Sent JSON-RPC batch of {} requests", batch.size());
+        } catch (Exception e) {
+            batch.forEach(call -> call.response().completeExceptionally(e));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushScheduler.shutdownNow();
+        ioExecutor.shutdownNow();
+        super.close();
+    }
+
+    private record Pending(String id, String payload, CompletableFuture<byte[]> response) {}
+}
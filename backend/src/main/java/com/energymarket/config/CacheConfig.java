@@ -1,33 +1,128 @@
 package com.energymarket.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.energymarket.dto.NFTMetadataDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.caffeine.CaffeineCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Configuration
 @EnableCaching
 public class CacheConfig {
-    public static final String MARKETPLACE_ITEMS_CACHE = "marketplaceItems";
     public static final String NFT_METADATA_CACHE = "nftMetadataCache";
-    
+    // Không phải Spring cache: LoadingCache tổng số bản ghi trong NFTService
+    public static final String LISTING_COUNTS_CACHE = "listingCounts";
+
+    private static final List<String> CACHE_NAMES = List.of(NFT_METADATA_CACHE);
+
+    // Kiểu value của cache có tầng Redis (đọc lại từ JSON)
+    private static final Map<String, Class<?>> REMOTE_VALUE_TYPES = Map.of(
+        NFT_METADATA_CACHE, NFTMetadataDto.class
+    );
+
+    @Value("${cache.redis.enabled:false}")
+    private boolean redisEnabled;
+
+    @Value("${cache.redis.key-prefix:energymarket:cache:}")
+    private String redisKeyPrefix;
+
+    @Value("${cache.redis.channel:energymarket:cache-invalidation}")
+    private String redisChannel;
+
     @Bean
-    public CacheManager cacheManager() {
+    public CacheManager cacheManager(CachePolicyProperties policies, ObjectMapper objectMapper,
+                                     ObjectProvider<RedisConnectionFactory> redisConnectionFactory) {
         CaffeineCacheManager cacheManager = new CaffeineCacheManager();
-        
+
+        // Mặc định cho cache không có cấu hình riêng trong cache.specs
         cacheManager.setCaffeine(Caffeine.newBuilder()
             // QUAN TRỌNG: Cache chỉ lưu trong 5 giây
-            .expireAfterWrite(5, TimeUnit.SECONDS) 
-            .maximumSize(1000)                      
-            .recordStats());                        
-            
-        cacheManager.setCacheNames(List.of(MARKETPLACE_ITEMS_CACHE, NFT_METADATA_CACHE));
-        
-        return cacheManager;
+            .expireAfterWrite(5, TimeUnit.SECONDS)
+            .maximumSize(1000)
+            .recordStats());
+
+        List<String> defaultNames = new ArrayList<>();
+        for (String name : CACHE_NAMES) {
+            CachePolicyProperties.Spec spec = policies.spec(name);
+            if (spec == null) {
+                defaultNames.add(name);
+                continue;
+            }
+            if (spec.getRefreshAfterWrite() != null) {
+                log.warn("Cache {}: refresh-after-write needs a loader, ignored", name);
+            }
+            cacheManager.registerCustomCache(name, spec.toBuilder(payloadWeigher(objectMapper), false).build());
+            log.info("Cache {} configured: {}", name, spec);
+        }
+        cacheManager.setCacheNames(defaultNames);
+
+        if (!redisEnabled) {
+            return cacheManager;
+        }
+
+        // Nhiều replica: Caffeine làm near cache, Redis dùng chung làm far cache
+        Map<String, Duration> remoteTtls = new HashMap<>();
+        REMOTE_VALUE_TYPES.keySet().forEach(name -> {
+            CachePolicyProperties.Spec spec = policies.spec(name);
+            Duration ttl = spec == null ? null
+                : spec.getRemoteTtl() != null ? spec.getRemoteTtl() : spec.getExpireAfterWrite();
+            if (ttl != null) remoteTtls.put(name, ttl);
+        });
+        log.info("Two-tier cache enabled (Caffeine + Redis) for {}", REMOTE_VALUE_TYPES.keySet());
+        return new TwoTierCacheManager(cacheManager, redisTemplate(redisConnectionFactory.getObject()), objectMapper,
+            REMOTE_VALUE_TYPES, remoteTtls, redisKeyPrefix, redisChannel);
+    }
+
+    // Nhận thông báo xóa cache từ replica khác
+    @Bean
+    @ConditionalOnProperty(name = "cache.redis.enabled", havingValue = "true")
+    public RedisMessageListenerContainer cacheInvalidationListener(RedisConnectionFactory connectionFactory, CacheManager cacheManager) {
+        TwoTierCacheManager twoTier = (TwoTierCacheManager) cacheManager;
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(twoTier, new ChannelTopic(twoTier.getChannel()));
+        return container;
+    }
+
+    private static RedisTemplate<String, byte[]> redisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.afterPropertiesSet();
+        return template;
+    }
+
+    // Trọng số = số byte JSON ước lượng của key + value (chỉ tính một lần khi ghi vào cache)
+    private static Weigher<Object, Object> payloadWeigher(ObjectMapper objectMapper) {
+        return (key, value) -> {
+            int keySize = key.toString().length();
+            try {
+                return keySize + objectMapper.writeValueAsBytes(value).length;
+            } catch (Exception e) {
+                return keySize + 1;
+            }
+        };
     }
-}
\ No newline at end of file
+}
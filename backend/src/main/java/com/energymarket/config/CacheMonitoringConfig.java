@@ -5,6 +5,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.util.Collection;
 
+import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.caffeine.CaffeineCache;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -23,7 +24,9 @@ public class CacheMonitoringConfig {
     public void logCacheStatistics() {
         Collection<String> cacheNames = cacheManager.getCacheNames();
         cacheNames.forEach(cacheName -> {
-            CaffeineCache cache = (CaffeineCache) cacheManager.getCache(cacheName);
+            Cache managed = cacheManager.getCache(cacheName);
+            // Cache hai tầng: thống kê của tầng Caffeine local
+            CaffeineCache cache = managed instanceof TwoTierCache twoTier ? twoTier.getLocal() : (CaffeineCache) managed;
             if (cache != null) {
                 CacheStats stats = cache.getNativeCache().stats();
                 log.info("Cache Statistics for {}: Hits={}, Misses={}, Size={}", 
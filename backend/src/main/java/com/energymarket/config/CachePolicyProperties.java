@@ -0,0 +1,54 @@
+package com.energymarket.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Chính sách riêng cho từng cache (cache.specs.<tên cache> trong application.yml)
+@Data
+@Component
+@ConfigurationProperties(prefix = "cache")
+public class CachePolicyProperties {
+    private Map<String, Spec> specs = new LinkedHashMap<>();
+
+    public Spec spec(String cacheName) {
+        return specs.get(cacheName);
+    }
+
+    @Data
+    public static class Spec {
+        private Long maximumSize;
+        // Giới hạn theo tổng kích thước payload (byte ước lượng) thay vì số entry
+        private Long maximumWeight;
+        private Duration expireAfterWrite;
+        private Duration expireAfterAccess;
+        // Chỉ có tác dụng với cache có loader (LoadingCache)
+        private Duration refreshAfterWrite;
+        private boolean softValues;
+        // TTL trên tầng Redis khi bật cache.redis (mặc định = expireAfterWrite, cả hai null = không hết hạn)
+        private Duration remoteTtl;
+        private boolean recordStats = true;
+
+        // weigher dùng khi có maximumWeight (null = mỗi entry nặng 1); refreshAfterWrite bỏ qua nếu không có loader
+        public Caffeine<Object, Object> toBuilder(Weigher<Object, Object> weigher, boolean withLoader) {
+            Caffeine<Object, Object> builder = Caffeine.newBuilder();
+            if (maximumSize != null) builder.maximumSize(maximumSize);
+            if (maximumWeight != null) {
+                builder.maximumWeight(maximumWeight)
+                    .weigher(weigher != null ? weigher : Weigher.singletonWeigher());
+            }
+            if (expireAfterWrite != null) builder.expireAfterWrite(expireAfterWrite);
+            if (expireAfterAccess != null) builder.expireAfterAccess(expireAfterAccess);
+            if (refreshAfterWrite != null && withLoader) builder.refreshAfterWrite(refreshAfterWrite);
+            if (softValues) builder.softValues();
+            if (recordStats) builder.recordStats();
+            return builder;
+        }
+    }
+}
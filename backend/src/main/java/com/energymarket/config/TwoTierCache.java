@@ -0,0 +1,164 @@
+package com.energymarket.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// Near cache (Caffeine trong JVM) + far cache (Redis dùng chung giữa các replica).
+// Đọc: local -> Redis -> loader; ghi/xóa: cả hai tầng, mỗi lần ghi/xóa phát qua pub/sub để replica khác
+// bỏ bản local cũ (lần đọc sau lấy giá trị mới từ Redis).
+// Redis lỗi thì chỉ log và chạy như cache local.
+@Slf4j
+public class TwoTierCache implements Cache {
+    private final CaffeineCache local;
+    private final RedisTemplate<String, byte[]> redis;
+    private final ObjectMapper objectMapper;
+    private final Class<?> valueType;
+    private final Duration remoteTtl; // null = không hết hạn trên Redis
+    private final TwoTierCacheManager manager;
+
+    public TwoTierCache(CaffeineCache local, RedisTemplate<String, byte[]> redis, ObjectMapper objectMapper,
+                        Class<?> valueType, Duration remoteTtl, TwoTierCacheManager manager) {
+        this.local = local;
+        this.redis = redis;
+        this.objectMapper = objectMapper;
+        this.valueType = valueType;
+        this.remoteTtl = remoteTtl;
+        this.manager = manager;
+    }
+
+    public CaffeineCache getLocal() {
+        return local;
+    }
+
+    @Override
+    public String getName() {
+        return local.getName();
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return local.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        ValueWrapper wrapper = local.get(key);
+        if (wrapper != null) return wrapper;
+
+        Object value = readRemote(key);
+        if (value == null) return null;
+        local.put(key, value);
+        return new SimpleValueWrapper(value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper wrapper = get(key);
+        Object value = wrapper != null ? wrapper.get() : null;
+        if (value != null && type != null && !type.isInstance(value)) {
+            throw new IllegalStateException("Cached value is not of required type [" + type.getName() + "]: " + value);
+        }
+        return (T) value;
+    }
+
+    // sync = true: Caffeine giữ một lần tải cho mỗi key trong JVM, Redis được hỏi trước khi gọi loader
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        return local.get(key, () -> {
+            Object remote = readRemote(key);
+            if (remote != null) return (T) remote;
+
+            T value = valueLoader.call();
+            writeRemote(key, value);
+            if (value != null) manager.publishEvict(getName(), key);
+            return value;
+        });
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        local.put(key, value);
+        writeRemote(key, value);
+        manager.publishEvict(getName(), key);
+    }
+
+    @Override
+    public void evict(Object key) {
+        local.evict(key);
+        try {
+            redis.delete(redisKey(key));
+        } catch (Exception e) {
+            log.warn("Redis evict failed for {}:{}: {}", getName(), key, e.getMessage());
+        }
+        manager.publishEvict(getName(), key);
+    }
+
+    @Override
+    public void clear() {
+        local.clear();
+        try {
+            List<String> keys = new ArrayList<>();
+            try (Cursor<String> cursor = redis.scan(ScanOptions.scanOptions().match(redisKeyPrefix() + "*").count(1000).build())) {
+                cursor.forEachRemaining(keys::add);
+            }
+            if (!keys.isEmpty()) redis.delete(keys);
+        } catch (Exception e) {
+            log.warn("Redis clear failed for {}: {}", getName(), e.getMessage());
+        }
+        manager.publishClear(getName());
+    }
+
+    // Gọi từ pub/sub khi replica khác xóa: chỉ xóa tầng local, không phát lại
+    void evictLocal(Object key) {
+        local.evict(key);
+    }
+
+    void clearLocal() {
+        local.clear();
+    }
+
+    private Object readRemote(Object key) {
+        try {
+            byte[] bytes = redis.opsForValue().get(redisKey(key));
+            return bytes != null ? objectMapper.readValue(bytes, valueType) : null;
+        } catch (Exception e) {
+            log.warn("Redis read failed for {}:{}: {}", getName(), key, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeRemote(Object key, Object value) {
+        if (value == null) return; // null chỉ cache ở local
+        try {
+            byte[] bytes = objectMapper.writeValueAsBytes(value);
+            if (remoteTtl != null) {
+                redis.opsForValue().set(redisKey(key), bytes, remoteTtl);
+            } else {
+                redis.opsForValue().set(redisKey(key), bytes);
+            }
+        } catch (Exception e) {
+            log.warn("Redis write failed for {}:{}: {}", getName(), key, e.getMessage());
+        }
+    }
+
+    private String redisKeyPrefix() {
+        return manager.getKeyPrefix() + getName() + ":";
+    }
+
+    private String redisKey(Object key) {
+        return redisKeyPrefix() + key;
+    }
+}
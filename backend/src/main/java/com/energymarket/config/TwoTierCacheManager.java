@@ -0,0 +1,107 @@
+package com.energymarket.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bọc CaffeineCacheManager: cache có kiểu value đăng ký (valueTypes) được thêm tầng Redis,
+// cache còn lại giữ nguyên chỉ local. Nhận thông báo xóa từ replica khác qua kênh pub/sub.
+@Slf4j
+public class TwoTierCacheManager implements CacheManager, MessageListener {
+    private final CaffeineCacheManager localManager;
+    private final RedisTemplate<String, byte[]> redis;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Class<?>> valueTypes;
+    private final Map<String, Duration> remoteTtls;
+    private final String keyPrefix;
+    private final String channel;
+    // Bỏ qua thông báo do chính instance này phát
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Map<String, Cache> caches = new ConcurrentHashMap<>();
+
+    public TwoTierCacheManager(CaffeineCacheManager localManager, RedisTemplate<String, byte[]> redis, ObjectMapper objectMapper,
+                               Map<String, Class<?>> valueTypes, Map<String, Duration> remoteTtls, String keyPrefix, String channel) {
+        this.localManager = localManager;
+        this.redis = redis;
+        this.objectMapper = objectMapper;
+        this.valueTypes = valueTypes;
+        this.remoteTtls = remoteTtls;
+        this.keyPrefix = keyPrefix;
+        this.channel = channel;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        return caches.computeIfAbsent(name, n -> {
+            Cache local = localManager.getCache(n);
+            Class<?> valueType = valueTypes.get(n);
+            if (local == null || valueType == null) return local;
+            return new TwoTierCache((CaffeineCache) local, redis, objectMapper, valueType, remoteTtls.get(n), this);
+        });
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return localManager.getCacheNames();
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    void publishEvict(String cacheName, Object key) {
+        publish(new Invalidation(instanceId, cacheName, key.toString(), key instanceof BigInteger));
+    }
+
+    void publishClear(String cacheName) {
+        publish(new Invalidation(instanceId, cacheName, null, false));
+    }
+
+    private void publish(Invalidation invalidation) {
+        try {
+            redis.convertAndSend(channel, objectMapper.writeValueAsBytes(invalidation));
+        } catch (Exception e) {
+            log.warn("Failed to publish cache invalidation {}: {}", invalidation, e.getMessage());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            Invalidation invalidation = objectMapper.readValue(message.getBody(), Invalidation.class);
+            if (instanceId.equals(invalidation.instanceId())) return;
+            if (!(getCache(invalidation.cache()) instanceof TwoTierCache cache)) return;
+
+            if (invalidation.key() == null) {
+                cache.clearLocal();
+            } else {
+                // Key truyền qua kênh dưới dạng chuỗi: tokenId (BigInteger) hoặc URI metadata (String)
+                cache.evictLocal(invalidation.numericKey() ? new BigInteger(invalidation.key()) : invalidation.key());
+            }
+            log.debug("Applied remote cache invalidation {}", invalidation);
+        } catch (Exception e) {
+            log.warn("Invalid cache invalidation message on {}: {}",
+                new String(message.getChannel(), StandardCharsets.UTF_8), e.getMessage());
+        }
+    }
+
+    record Invalidation(String instanceId, String cache, String key, boolean numericKey) {}
+}
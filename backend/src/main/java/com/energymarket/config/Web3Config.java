@@ -7,6 +7,8 @@ import org.springframework.context.annotation.Primary;
 import org.web3j.crypto.Credentials;
 import org.web3j.protocol.Web3j;
 import org.web3j.protocol.http.HttpService;
+import org.web3j.protocol.websocket.WebSocketService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.web3j.tx.gas.ContractGasProvider;
 import org.web3j.tx.gas.StaticGasProvider;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
@@ -14,7 +16,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import okhttp3.OkHttpClient;
 import lombok.extern.slf4j.Slf4j;
 import java.math.BigInteger;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 // Import Contracts
 import com.energymarket.contracts.EnergyMarketplace;
@@ -28,6 +32,10 @@ public class Web3Config {
     @Value("${blockchain.node.url}")
     private String blockchainNodeUrl;
     
+    // Để trống = chỉ dùng polling qua HTTP
+    @Value("${blockchain.node.ws-url:}")
+    private String blockchainWsUrl;
+
     @Value("${contract.marketplace.address}")
     private String marketplaceAddress;
 
@@ -38,7 +46,8 @@ public class Web3Config {
     @Value("${contract.lending.address}") 
     private String lendingAddress; 
 
-    private String loyaltyProgramAddress = "0x12738655b22fF3e1Dd8B41E0A3f0Bb31CF06CE91";
+    @Value("${contract.loyalty.address:0x12738655b22fF3e1Dd8B41E0A3f0Bb31CF06CE91}")
+    private String loyaltyProgramAddress;
 
     @Bean
     @Primary
@@ -57,11 +66,39 @@ public class Web3Config {
         return mapper;
     }
     
+    // Gộp các request đồng thời thành JSON-RPC batch (xem BatchingHttpService)
+    @Value("${rpc.coalesce.enabled:true}")
+    private boolean coalesceEnabled;
+
+    @Value("${rpc.coalesce.window-micros:2000}")
+    private long coalesceWindowMicros;
+
+    @Value("${rpc.coalesce.max-batch-size:50}")
+    private int coalesceMaxBatchSize;
+
+    @Value("${rpc.coalesce.methods:eth_call,eth_getLogs,eth_blockNumber,eth_getBlockByNumber}")
+    private Set<String> coalesceMethods;
+
+    // Các request giống hệt nhau đang chờ kết quả dùng chung một lần gọi
+    @Value("${rpc.coalesce.single-flight:true}")
+    private boolean singleFlight;
+
     @Bean
     public Web3j web3j(OkHttpClient httpClient) {
+        if (coalesceEnabled) {
+            return Web3j.build(new BatchingHttpService(blockchainNodeUrl, httpClient,
+                coalesceWindowMicros, coalesceMaxBatchSize, coalesceMethods, singleFlight));
+        }
         return Web3j.build(new HttpService(blockchainNodeUrl, httpClient));
     }
     
+    // WebSocketService không kết nối lại được sau khi đóng, mỗi lần reconnect cần một instance mới
+    @Bean
+    @ConditionalOnProperty(name = "indexer.websocket.enabled", havingValue = "true")
+    public Supplier<WebSocketService> webSocketServiceFactory() {
+        return () -> new WebSocketService(blockchainWsUrl, false);
+    }
+
     @Bean
     public Credentials credentials() {
         try {
@@ -0,0 +1,41 @@
+package com.energymarket.controller;
+
+import com.energymarket.service.EventBackfillService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/v1/indexer")
+@RequiredArgsConstructor
+@CrossOrigin(origins = "*")
+public class IndexerController {
+
+    private final EventBackfillService backfillService;
+
+    @Value("${indexer.backfill.from-block:0}")
+    private BigInteger defaultFromBlock;
+
+    // Chạy lại index marketplace cho một khoảng block (mặc định từ block deploy tới checkpoint hiện tại)
+    @PostMapping("/backfill")
+    public ResponseEntity<?> startBackfill(
+        @RequestParam(name = "fromBlock", required = false) BigInteger fromBlock,
+        @RequestParam(name = "toBlock", required = false) BigInteger toBlock
+    ) {
+        try {
+            BigInteger start = fromBlock != null ? fromBlock : defaultFromBlock;
+            return ResponseEntity.accepted().body(backfillService.startBackfill(start, toBlock));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @GetMapping("/backfill")
+    public ResponseEntity<?> getBackfillStatus() {
+        return ResponseEntity.ok(backfillService.getStatus());
+    }
+}
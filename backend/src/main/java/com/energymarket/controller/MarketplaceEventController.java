@@ -0,0 +1,28 @@
+package com.energymarket.controller;
+
+import com.energymarket.service.MarketplaceEventStreamService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+@RestController
+@RequestMapping("/api/v1/events")
+@RequiredArgsConstructor
+@CrossOrigin(origins = "*")
+public class MarketplaceEventController {
+
+    private final MarketplaceEventStreamService streamService;
+
+    // Stream SSE các sự kiện mint / sale / listing do indexer ghi nhận
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream() {
+        try {
+            return streamService.subscribe();
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+    }
+}
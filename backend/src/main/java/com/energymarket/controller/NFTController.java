@@ -1,5 +1,6 @@
 package com.energymarket.controller;
 
+import com.energymarket.dto.NFTCursorPageDto;
 import com.energymarket.dto.NFTDto;
 import com.energymarket.service.NFTService;
 import lombok.RequiredArgsConstructor;
@@ -8,6 +9,8 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.web.bind.annotation.*;
 
+import java.math.BigInteger;
+
 @CrossOrigin(origins = "http://localhost:3000", maxAge = 3600)
 @RestController
 @RequestMapping("/api/v1/nfts")
@@ -19,8 +22,21 @@ public class NFTController {
     public Page<NFTDto> getListedNFTs(
         @RequestParam(name = "section", defaultValue = "home") String section,
         @RequestParam(name = "account", required = false) String account,
+        // exact | approximate | none (xem NFTService.CountMode); mặc định exact như trước, client tự chọn cách khác
+        @RequestParam(name = "count", defaultValue = "exact") String count,
         Pageable pageable
     ) {
-        return nftService.getNFTs(section, account, pageable);
+        return nftService.getNFTs(section, account, pageable, NFTService.CountMode.from(count));
+    }
+
+    // Phân trang theo cursor: after = tokenId cuối của trang trước (bỏ trống cho trang đầu)
+    @GetMapping("/cursor")
+    public NFTCursorPageDto getNFTsAfter(
+        @RequestParam(name = "section", defaultValue = "home") String section,
+        @RequestParam(name = "account", required = false) String account,
+        @RequestParam(name = "after", required = false) BigInteger after,
+        @RequestParam(name = "limit", defaultValue = "20") int limit
+    ) {
+        return nftService.getNFTsAfter(section, account, after, limit);
     }
 } 
\ No newline at end of file
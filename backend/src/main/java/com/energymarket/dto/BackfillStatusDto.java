@@ -0,0 +1,20 @@
+package com.energymarket.dto;
+
+import lombok.Builder;
+import lombok.Data;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+public class BackfillStatusDto {
+    private boolean running;
+    private BigInteger fromBlock;
+    private BigInteger toBlock;
+    // Block cuối cùng đã commit (theo đúng thứ tự)
+    private BigInteger committedBlock;
+    private long eventsCommitted;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+    private String error;
+}
@@ -0,0 +1,30 @@
+package com.energymarket.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.Data;
+
+// Thay đổi gọn của marketplace đẩy qua SSE; số lớn (wei, tokenId) để dạng chuỗi cho JS khỏi mất độ chính xác
+@Data
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MarketplaceEventDto {
+    public static final String MINT = "mint";
+    public static final String SALE = "sale";
+    public static final String LISTING = "listing";
+    // Chuyển NFT giữa hai ví ngoài marketplace (owner đổi, không có NFTSold)
+    public static final String TRANSFER = "transfer";
+    // Client bị tụt lại quá buffer: bỏ các thay đổi cũ, client cần tải lại danh sách
+    public static final String RESYNC = "resync";
+
+    private String type;
+    private String tokenId;
+    private String owner;
+    private String seller;
+    private String buyer;
+    private String price; // Wei
+    private String energyAmount;
+    private Boolean listed;
+    private String blockNumber;
+    private String txHash;
+}
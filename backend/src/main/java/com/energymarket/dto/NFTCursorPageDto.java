@@ -0,0 +1,14 @@
+package com.energymarket.dto;
+
+import lombok.Builder;
+import lombok.Data;
+import java.util.List;
+
+// Trang theo cursor: truyền nextCursor vào tham số "after" để lấy trang kế tiếp
+@Data
+@Builder
+public class NFTCursorPageDto {
+    private List<NFTDto> items;
+    private String nextCursor;
+    private boolean hasNext;
+}
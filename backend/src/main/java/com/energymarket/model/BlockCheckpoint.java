@@ -0,0 +1,32 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "block_checkpoints")
+public class BlockCheckpoint {
+    // Địa chỉ contract (lowercase) được index
+    @Id
+    private String contractAddress;
+
+    // Block cuối cùng đã xử lý xong (đã commit cùng với các event của nó)
+    private BigInteger lastProcessedBlock;
+
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    @PreUpdate
+    protected void onUpdate() {
+        updatedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,28 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+// Số dư năng lượng mới nhất của user, lấy từ event EnergyBalanceUpdated (EnergyNFT)
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "energy_balances")
+public class EnergyBalance {
+    @Id
+    private String userAddress;
+
+    private BigInteger balance;
+
+    // Block của event cuối cùng đã áp dụng
+    private BigInteger blockNumber;
+
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,22 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.math.BigInteger;
+
+// Hash của các block gần đây đã index, dùng để phát hiện reorg
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "indexed_blocks")
+public class IndexedBlock {
+    @Id
+    private BigInteger blockNumber;
+
+    private String blockHash;
+}
@@ -0,0 +1,28 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+// Tổng điểm loyalty mới nhất của user, lấy từ event LoyaltyPointsAdded (LoyaltyProgram)
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "loyalty_points")
+public class LoyaltyAccount {
+    @Id
+    private String userAddress;
+
+    private BigInteger points;
+
+    // Block của event cuối cùng đã áp dụng
+    private BigInteger blockNumber;
+
+    private LocalDateTime updatedAt;
+}
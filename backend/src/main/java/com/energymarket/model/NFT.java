@@ -7,7 +7,14 @@ import java.time.LocalDateTime;
 
 @Data
 @Entity
-@Table(name = "nfts")
+@Table(
+    name = "nfts",
+    // Phục vụ các truy vấn danh sách của NFTService (lọc + phân trang theo token_id)
+    indexes = {
+        @Index(name = "idx_nfts_listed_token", columnList = "is_listed, token_id"),
+        @Index(name = "idx_nfts_owner_listed_token", columnList = "owner, is_listed, token_id")
+    }
+)
 public class NFT {
     @Id
     private BigInteger tokenId;
@@ -21,8 +28,15 @@ public class NFT {
     // --------------------
 
     private String owner;
+    // Người mint và niêm yết (items(tokenId).seller trên contract), không đổi khi token được bán hay chuyển
+    private String seller;
     private BigInteger price;
     private boolean isListed;
+
+    // Block chứa event mint, dùng để rollback khi có reorg
+    private BigInteger blockNumber;
+    // Block của event gần nhất đã ghi vào owner/is_listed/price: event cũ hơn (backfill quét lại) bị bỏ qua
+    private BigInteger lastEventBlock;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     
@@ -0,0 +1,33 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.time.LocalDateTime;
+
+// Metadata IPFS đã đọc, khóa theo nội dung (CID[/path]) nên mỗi tokenURI chỉ gọi IPFS một lần
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "nft_metadata")
+public class NFTMetadataRecord {
+    @Id
+    @Column(length = 1000)
+    private String contentKey;
+
+    @Column(columnDefinition = "TEXT")
+    private String description;
+
+    @Column(columnDefinition = "TEXT")
+    private String image;
+
+    // Danh sách attributes dạng JSON
+    @Column(columnDefinition = "TEXT")
+    private String attributes;
+
+    private LocalDateTime fetchedAt;
+}
@@ -0,0 +1,37 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+// Lịch sử event Transfer (EnergyNFT): nguồn của cột nfts.owner, dùng để khôi phục owner khi reorg
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(
+    name = "nft_transfers",
+    uniqueConstraints = @UniqueConstraint(name = "uk_nft_transfers_tx_log", columnNames = {"tx_hash", "log_index"}),
+    indexes = @Index(name = "idx_nft_transfers_token_block", columnList = "token_id, block_number")
+)
+public class NFTTransfer {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private BigInteger tokenId;
+    private String fromAddress;
+    private String toAddress;
+
+    private LocalDateTime transferDate;
+
+    // Vị trí của event trên chain
+    private BigInteger blockNumber;
+    private String txHash;
+    private Integer logIndex;
+}
@@ -0,0 +1,34 @@
+package com.energymarket.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+// Khoản vay on-chain, lấy từ event LoanCreated / LoanRepaid (EnergyLending)
+@Data
+@Entity
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "onchain_loans")
+public class OnChainLoan {
+    @Id
+    private BigInteger loanId;
+
+    private String borrower;
+    private BigInteger repaymentAmount; // Wei
+    private BigInteger energyAmount;
+
+    private boolean repaid;
+    private BigInteger amountPaid;      // Wei
+
+    private BigInteger createdBlock;
+    private String createdTxHash;
+    private BigInteger repaidBlock;
+
+    private LocalDateTime updatedAt;
+}
@@ -13,7 +13,12 @@ import java.time.LocalDateTime;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "transaction_history")
+@Table(
+    name = "transaction_history",
+    // Mỗi log on-chain chỉ được lưu một lần, quét lại range cũ không tạo bản ghi trùng
+    uniqueConstraints = @UniqueConstraint(name = "uk_transaction_history_tx_log", columnNames = {"tx_hash", "log_index"}),
+    indexes = @Index(name = "idx_transaction_history_token", columnList = "token_id")
+)
 public class TransactionHistory {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -26,4 +31,9 @@ public class TransactionHistory {
     private BigInteger fee;   // Phí sàn
     
     private LocalDateTime transactionDate;
+
+    // Vị trí của event trên chain
+    private BigInteger blockNumber;
+    private String txHash;
+    private Integer logIndex;
 }
\ No newline at end of file
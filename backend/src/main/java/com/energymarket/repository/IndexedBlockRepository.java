@@ -0,0 +1,26 @@
+package com.energymarket.repository;
+
+import com.energymarket.model.IndexedBlock;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigInteger;
+import java.util.List;
+
+@Repository
+public interface IndexedBlockRepository extends JpaRepository<IndexedBlock, BigInteger> {
+
+    // Cửa sổ block gần nhất, mới nhất trước
+    List<IndexedBlock> findAllByOrderByBlockNumberDesc();
+
+    @Modifying
+    @Query("DELETE FROM IndexedBlock b WHERE b.blockNumber < :block")
+    int deleteOlderThan(@Param("block") BigInteger block);
+
+    @Modifying
+    @Query("DELETE FROM IndexedBlock b WHERE b.blockNumber > :block")
+    int deleteNewerThan(@Param("block") BigInteger block);
+}
@@ -0,0 +1,443 @@
+package com.energymarket.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Ghi event đã index theo lô (multi-row upsert) thay vì save() từng bản ghi qua JPA
+@Repository
+@RequiredArgsConstructor
+public class IndexedEventJdbcRepository {
+
+    // Postgres giới hạn 32767 tham số mỗi câu lệnh, chia lô để an toàn
+    private static final int MAX_ROWS_PER_STATEMENT = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // Trả về các giao dịch thực sự được thêm mới (bỏ qua bản ghi đã có theo tx_hash + log_index).
+    // blockTimes: timestamp của block chứa event, dùng làm ngày giao dịch
+    public List<SaleRecord> insertSales(List<SaleRecord> sales, Map<BigInteger, LocalDateTime> blockTimes) {
+        if (sales.isEmpty()) return Collections.emptyList();
+
+        Set<String> insertedKeys = new HashSet<>();
+
+        for (List<SaleRecord> chunk : chunks(sales)) {
+            StringBuilder sql = new StringBuilder("INSERT INTO transaction_history " +
+                "(token_id, seller, buyer, price, fee, transaction_date, block_number, tx_hash, log_index) VALUES ");
+            List<Object> params = new ArrayList<>(chunk.size() * 9);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                SaleRecord sale = chunk.get(i);
+                sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                params.add(numeric(sale.tokenId()));
+                params.add(sale.seller());
+                params.add(sale.buyer());
+                params.add(numeric(sale.price()));
+                params.add(numeric(sale.fee()));
+                params.add(blockTime(blockTimes, sale.blockNumber()));
+                params.add(numeric(sale.blockNumber()));
+                params.add(sale.txHash());
+                params.add(sale.logIndex());
+            }
+            sql.append(" ON CONFLICT (tx_hash, log_index) DO NOTHING RETURNING tx_hash, log_index");
+
+            jdbcTemplate.query(sql.toString(),
+                rs -> { insertedKeys.add(rs.getString(1) + ":" + rs.getInt(2)); },
+                params.toArray());
+        }
+
+        return sales.stream()
+            .filter(sale -> insertedKeys.contains(sale.txHash() + ":" + sale.logIndex()))
+            .toList();
+    }
+
+    // Cập nhật chủ sở hữu theo đúng thứ tự log (token bán nhiều lần trong một range thì lần cuối thắng).
+    // Bỏ qua sale cũ hơn event đã ghi cho token (quét lại range cũ không làm lùi trạng thái)
+    public void markSold(List<SaleRecord> sales) {
+        if (sales.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "UPDATE nfts SET is_listed = false, owner = ?, last_event_block = ?, updated_at = ? " +
+            "WHERE token_id = ? AND (last_event_block IS NULL OR last_event_block <= ?)",
+            sales,
+            MAX_ROWS_PER_STATEMENT,
+            (ps, sale) -> {
+                ps.setString(1, sale.buyer());
+                ps.setBigDecimal(2, numeric(sale.blockNumber()));
+                ps.setTimestamp(3, now);
+                ps.setBigDecimal(4, numeric(sale.tokenId()));
+                ps.setBigDecimal(5, numeric(sale.blockNumber()));
+            });
+    }
+
+    // Idempotent như insertSales: chỉ trả về transfer chưa có trong nft_transfers
+    public List<TransferRecord> insertTransfers(List<TransferRecord> transfers, Map<BigInteger, LocalDateTime> blockTimes) {
+        if (transfers.isEmpty()) return Collections.emptyList();
+
+        Set<String> insertedKeys = new HashSet<>();
+
+        for (List<TransferRecord> chunk : chunks(transfers)) {
+            StringBuilder sql = new StringBuilder("INSERT INTO nft_transfers " +
+                "(token_id, from_address, to_address, transfer_date, block_number, tx_hash, log_index) VALUES ");
+            List<Object> params = new ArrayList<>(chunk.size() * 7);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                TransferRecord transfer = chunk.get(i);
+                sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?)");
+                params.add(numeric(transfer.tokenId()));
+                params.add(transfer.from());
+                params.add(transfer.to());
+                params.add(blockTime(blockTimes, transfer.blockNumber()));
+                params.add(numeric(transfer.blockNumber()));
+                params.add(transfer.txHash());
+                params.add(transfer.logIndex());
+            }
+            sql.append(" ON CONFLICT (tx_hash, log_index) DO NOTHING RETURNING tx_hash, log_index");
+
+            jdbcTemplate.query(sql.toString(),
+                rs -> { insertedKeys.add(rs.getString(1) + ":" + rs.getInt(2)); },
+                params.toArray());
+        }
+
+        return transfers.stream()
+            .filter(transfer -> insertedKeys.contains(transfer.txHash() + ":" + transfer.logIndex()))
+            .toList();
+    }
+
+    // Owner = người nhận của Transfer cuối cùng (theo thứ tự log), gồm cả chuyển ví-ví ngoài marketplace.
+    // Transfer cũ hơn event đã ghi cho token bị bỏ qua (backfill tới block cũ không ghi đè owner hiện tại)
+    public void updateOwners(List<TransferRecord> transfers) {
+        if (transfers.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "UPDATE nfts SET owner = ?, last_event_block = ?, updated_at = ? " +
+            "WHERE token_id = ? AND (last_event_block IS NULL OR last_event_block <= ?)",
+            transfers,
+            MAX_ROWS_PER_STATEMENT,
+            (ps, transfer) -> {
+                ps.setString(1, transfer.to());
+                ps.setBigDecimal(2, numeric(transfer.blockNumber()));
+                ps.setTimestamp(3, now);
+                ps.setBigDecimal(4, numeric(transfer.tokenId()));
+                ps.setBigDecimal(5, numeric(transfer.blockNumber()));
+            });
+    }
+
+    // Dòng ghi trước khi có cột last_event_block đã phản ánh mọi event tới checkpoint: gán checkpoint cho chúng
+    // để backfill range cũ không ghi đè
+    public int initLastEventBlock(BigInteger checkpoint) {
+        return jdbcTemplate.update(
+            "UPDATE nfts SET last_event_block = ? WHERE last_event_block IS NULL AND (block_number IS NULL OR block_number <= ?)",
+            numeric(checkpoint), numeric(checkpoint));
+    }
+
+    // Dòng ghi trước khi có cột seller: người bán của lần bán (mỗi token chỉ niêm yết một lần), chưa bán thì owner.
+    // Token nhận bằng Transfer trực tiếp có thể sai, NFTReconciliationService sửa lại theo items(tokenId).seller
+    public int initSellers() {
+        return jdbcTemplate.update(
+            "UPDATE nfts n SET seller = COALESCE((SELECT t.seller FROM transaction_history t WHERE t.token_id = n.token_id " +
+            "ORDER BY t.block_number, t.log_index LIMIT 1), n.owner) WHERE n.seller IS NULL");
+    }
+
+    public void updateSeller(BigInteger tokenId, String seller) {
+        jdbcTemplate.update("UPDATE nfts SET seller = ? WHERE token_id = ?", seller, numeric(tokenId));
+    }
+
+    // Hủy niêm yết / đổi giá: cột null thì giữ nguyên giá trị cũ; event cũ hơn event đã ghi bị bỏ qua như markSold.
+    // blockNumber null (đối soát, đọc trực tiếp từ chain) thì luôn ghi
+    public void updateListings(List<ListingRecord> listings) {
+        if (listings.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "UPDATE nfts SET is_listed = COALESCE(?, is_listed), price = COALESCE(?, price), " +
+            "last_event_block = COALESCE(?, last_event_block), updated_at = ? " +
+            "WHERE token_id = ? AND (?::numeric IS NULL OR last_event_block IS NULL OR last_event_block <= ?)",
+            listings,
+            MAX_ROWS_PER_STATEMENT,
+            (ps, listing) -> {
+                ps.setObject(1, listing.listed(), Types.BOOLEAN);
+                ps.setBigDecimal(2, numeric(listing.price()));
+                ps.setBigDecimal(3, numeric(listing.blockNumber()));
+                ps.setTimestamp(4, now);
+                ps.setBigDecimal(5, numeric(listing.tokenId()));
+                ps.setBigDecimal(6, numeric(listing.blockNumber()));
+                ps.setBigDecimal(7, numeric(listing.blockNumber()));
+            });
+    }
+
+    // Trả về token thực sự được thêm mới (token đã có trong DB bị bỏ qua); created_at = timestamp của block mint
+    public List<BigInteger> insertMints(List<MintRecord> mints, Map<BigInteger, LocalDateTime> blockTimes) {
+        if (mints.isEmpty()) return Collections.emptyList();
+
+        List<BigInteger> inserted = new ArrayList<>();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        for (List<MintRecord> chunk : chunks(mints)) {
+            StringBuilder sql = new StringBuilder("INSERT INTO nfts " +
+                "(token_id, tokenuri, energy_amount, energy_type, owner, seller, price, is_listed, block_number, last_event_block, " +
+                "created_at, updated_at) VALUES ");
+            List<Object> params = new ArrayList<>(chunk.size() * 12);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                MintRecord mint = chunk.get(i);
+                sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, true, ?, ?, ?, ?)");
+                params.add(numeric(mint.tokenId()));
+                params.add(mint.tokenURI());
+                params.add(numeric(mint.energyAmount()));
+                params.add(mint.energyType());
+                params.add(mint.owner());
+                params.add(mint.seller());
+                params.add(numeric(mint.price()));
+                params.add(numeric(mint.blockNumber()));
+                params.add(numeric(mint.blockNumber()));
+                params.add(blockTime(blockTimes, mint.blockNumber()));
+                params.add(now);
+            }
+            sql.append(" ON CONFLICT (token_id) DO NOTHING RETURNING token_id");
+
+            jdbcTemplate.query(sql.toString(),
+                rs -> { inserted.add(rs.getBigDecimal(1).toBigInteger()); },
+                params.toArray());
+        }
+        return inserted;
+    }
+
+    // Token id (1..maxTokenId) có trên marketplace nhưng chưa có trong bảng nfts
+    public List<BigInteger> findMissingTokenIds(BigInteger maxTokenId, int limit) {
+        return jdbcTemplate.query(
+            "SELECT g FROM generate_series(1, ?::numeric) g LEFT JOIN nfts n ON n.token_id = g " +
+            "WHERE n.token_id IS NULL ORDER BY g LIMIT ?",
+            (rs, rowNum) -> rs.getBigDecimal(1).toBigInteger(),
+            numeric(maxTokenId), limit);
+    }
+
+    // Chỉ cập nhật khi token vẫn đang ở trạng thái "expected" (không ghi đè giá trị đã có)
+    public int updateEnergyType(BigInteger tokenId, String expected, String energyType) {
+        return jdbcTemplate.update(
+            "UPDATE nfts SET energy_type = ?, updated_at = ? WHERE token_id = ? AND energy_type = ?",
+            energyType, Timestamp.valueOf(LocalDateTime.now()), numeric(tokenId), expected);
+    }
+
+    // Chỉ ghi đè khi event mới hơn hoặc bằng block đã lưu (backfill chạy lại range cũ không làm lùi số dư)
+    public void upsertBalances(Collection<BalanceRecord> balances) {
+        if (balances.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO energy_balances (user_address, balance, block_number, updated_at) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (user_address) DO UPDATE SET balance = EXCLUDED.balance, " +
+            "block_number = EXCLUDED.block_number, updated_at = EXCLUDED.updated_at " +
+            "WHERE energy_balances.block_number <= EXCLUDED.block_number",
+            new ArrayList<>(balances),
+            MAX_ROWS_PER_STATEMENT,
+            (ps, balance) -> {
+                ps.setString(1, balance.userAddress());
+                ps.setBigDecimal(2, numeric(balance.balance()));
+                ps.setBigDecimal(3, numeric(balance.blockNumber()));
+                ps.setTimestamp(4, now);
+            });
+    }
+
+    public void upsertLoyaltyPoints(Collection<LoyaltyRecord> points) {
+        if (points.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO loyalty_points (user_address, points, block_number, updated_at) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (user_address) DO UPDATE SET points = EXCLUDED.points, " +
+            "block_number = EXCLUDED.block_number, updated_at = EXCLUDED.updated_at " +
+            "WHERE loyalty_points.block_number <= EXCLUDED.block_number",
+            new ArrayList<>(points),
+            MAX_ROWS_PER_STATEMENT,
+            (ps, record) -> {
+                ps.setString(1, record.userAddress());
+                ps.setBigDecimal(2, numeric(record.points()));
+                ps.setBigDecimal(3, numeric(record.blockNumber()));
+                ps.setTimestamp(4, now);
+            });
+    }
+
+    public void insertLoans(List<LoanRecord> loans) {
+        if (loans.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO onchain_loans (loan_id, borrower, repayment_amount, energy_amount, repaid, " +
+            "created_block, created_tx_hash, updated_at) VALUES (?, ?, ?, ?, false, ?, ?, ?) " +
+            "ON CONFLICT (loan_id) DO NOTHING",
+            loans,
+            MAX_ROWS_PER_STATEMENT,
+            (ps, loan) -> {
+                ps.setBigDecimal(1, numeric(loan.loanId()));
+                ps.setString(2, loan.borrower());
+                ps.setBigDecimal(3, numeric(loan.repaymentAmount()));
+                ps.setBigDecimal(4, numeric(loan.energyAmount()));
+                ps.setBigDecimal(5, numeric(loan.blockNumber()));
+                ps.setString(6, loan.txHash());
+                ps.setTimestamp(7, now);
+            });
+    }
+
+    // Gọi sau insertLoans: khoản vay tạo và trả trong cùng range vẫn được đánh dấu đã trả
+    public void markLoansRepaid(List<LoanRepaymentRecord> repayments) {
+        if (repayments.isEmpty()) return;
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+            "UPDATE onchain_loans SET repaid = true, amount_paid = ?, repaid_block = ?, updated_at = ? WHERE loan_id = ?",
+            repayments,
+            MAX_ROWS_PER_STATEMENT,
+            (ps, repayment) -> {
+                ps.setBigDecimal(1, numeric(repayment.amountPaid()));
+                ps.setBigDecimal(2, numeric(repayment.blockNumber()));
+                ps.setTimestamp(3, now);
+                ps.setBigDecimal(4, numeric(repayment.loanId()));
+            });
+    }
+
+    // Rollback mọi thay đổi từ các block sau "block" (reorg). Trả về các token bị ảnh hưởng.
+    // Niêm yết/giá không có lịch sử theo block: bên gọi đọc lại các token trả về từ chain tại block fork
+    public Set<BigInteger> rollbackAfter(BigInteger block) {
+        BigDecimal fork = numeric(block);
+        Set<BigInteger> affected = new HashSet<>();
+
+        jdbcTemplate.query("SELECT DISTINCT token_id FROM transaction_history WHERE block_number > ? " +
+                           "UNION SELECT token_id FROM nft_transfers WHERE block_number > ? " +
+                           "UNION SELECT token_id FROM nfts WHERE block_number > ? " +
+                           "UNION SELECT token_id FROM nfts WHERE last_event_block > ?",
+            rs -> { affected.add(rs.getBigDecimal(1).toBigInteger()); },
+            fork, fork, fork, fork);
+
+        // Giao dịch bán chỉ xảy ra khi NFT đang niêm yết: trạng thái trước giao dịch bị hủy
+        // đầu tiên là (owner = seller, đang niêm yết)
+        jdbcTemplate.update("UPDATE nfts n SET owner = s.seller, is_listed = true, updated_at = ? " +
+                            "FROM (SELECT DISTINCT ON (token_id) token_id, seller FROM transaction_history " +
+                            "      WHERE block_number > ? ORDER BY token_id, block_number, log_index) s " +
+                            "WHERE n.token_id = s.token_id",
+            Timestamp.valueOf(LocalDateTime.now()), fork);
+
+        // Owner trước fork là người gửi của Transfer đầu tiên sau fork
+        jdbcTemplate.update("UPDATE nfts n SET owner = t.from_address, updated_at = ? " +
+                            "FROM (SELECT DISTINCT ON (token_id) token_id, from_address FROM nft_transfers " +
+                            "      WHERE block_number > ? ORDER BY token_id, block_number, log_index) t " +
+                            "WHERE n.token_id = t.token_id",
+            Timestamp.valueOf(LocalDateTime.now()), fork);
+
+        // Trạng thái đã khôi phục tương ứng với block fork: event index lại sau fork được ghi đè bình thường
+        jdbcTemplate.update("UPDATE nfts SET last_event_block = ? WHERE last_event_block > ?", fork, fork);
+
+        jdbcTemplate.update("DELETE FROM transaction_history WHERE block_number > ?", fork);
+        jdbcTemplate.update("DELETE FROM nft_transfers WHERE block_number > ?", fork);
+        jdbcTemplate.update("DELETE FROM nfts WHERE block_number > ?", fork);
+
+        jdbcTemplate.update("DELETE FROM onchain_loans WHERE created_block > ?", fork);
+        jdbcTemplate.update("UPDATE onchain_loans SET repaid = false, amount_paid = NULL, repaid_block = NULL " +
+                            "WHERE repaid_block > ?", fork);
+
+        // Event chỉ mang giá trị tổng, không biết giá trị trước fork: xóa dòng để đọc lại từ chain
+        // cho tới khi event kế tiếp được index
+        jdbcTemplate.update("DELETE FROM energy_balances WHERE block_number > ?", fork);
+        jdbcTemplate.update("DELETE FROM loyalty_points WHERE block_number > ?", fork);
+
+        return affected;
+    }
+
+    private static <T> List<List<T>> chunks(List<T> rows) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i += MAX_ROWS_PER_STATEMENT) {
+            chunks.add(rows.subList(i, Math.min(rows.size(), i + MAX_ROWS_PER_STATEMENT)));
+        }
+        return chunks;
+    }
+
+    // Không có timestamp của block (vd. token đối soát đọc từ chain, không có event) thì dùng thời điểm hiện tại
+    private static Timestamp blockTime(Map<BigInteger, LocalDateTime> blockTimes, BigInteger blockNumber) {
+        LocalDateTime time = blockNumber != null ? blockTimes.get(blockNumber) : null;
+        return Timestamp.valueOf(time != null ? time : LocalDateTime.now());
+    }
+
+    private static BigDecimal numeric(BigInteger value) {
+        return value == null ? null : new BigDecimal(value);
+    }
+
+    public record SaleRecord(
+        BigInteger tokenId,
+        String seller,
+        String buyer,
+        BigInteger price,
+        BigInteger fee,
+        BigInteger blockNumber,
+        String txHash,
+        int logIndex
+    ) {}
+
+    public record TransferRecord(
+        BigInteger tokenId,
+        String from,
+        String to,
+        BigInteger blockNumber,
+        String txHash,
+        int logIndex
+    ) {}
+
+    public record ListingRecord(
+        BigInteger tokenId,
+        Boolean listed,
+        BigInteger price,
+        BigInteger blockNumber
+    ) {}
+
+    public record MintRecord(
+        BigInteger tokenId,
+        String owner,
+        String seller,
+        String tokenURI,
+        BigInteger energyAmount,
+        BigInteger price,
+        String energyType,
+        BigInteger blockNumber
+    ) {}
+
+    public record BalanceRecord(
+        String userAddress,
+        BigInteger balance,
+        BigInteger blockNumber
+    ) {}
+
+    public record LoyaltyRecord(
+        String userAddress,
+        BigInteger points,
+        BigInteger blockNumber
+    ) {}
+
+    public record LoanRecord(
+        BigInteger loanId,
+        String borrower,
+        BigInteger repaymentAmount,
+        BigInteger energyAmount,
+        BigInteger blockNumber,
+        String txHash
+    ) {}
+
+    public record LoanRepaymentRecord(
+        BigInteger loanId,
+        BigInteger amountPaid,
+        BigInteger blockNumber
+    ) {}
+}
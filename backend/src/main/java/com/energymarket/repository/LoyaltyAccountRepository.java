@@ -0,0 +1,9 @@
+package com.energymarket.repository;
+
+import com.energymarket.model.LoyaltyAccount;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface LoyaltyAccountRepository extends JpaRepository<LoyaltyAccount, String> {
+}
@@ -0,0 +1,14 @@
+package com.energymarket.repository;
+
+import com.energymarket.model.NFTMetadataRecord;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface NFTMetadataRecordRepository extends JpaRepository<NFTMetadataRecord, String> {
+    // Nạp sẵn vào cache lúc khởi động: bản ghi mới nhất trước
+    List<NFTMetadataRecord> findAllByOrderByFetchedAtDesc(Pageable pageable);
+}
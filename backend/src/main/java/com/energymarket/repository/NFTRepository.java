@@ -1,12 +1,37 @@
 package com.energymarket.repository;
 
 import com.energymarket.model.NFT;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
 import java.math.BigInteger;
+import java.util.List;
 
 public interface NFTRepository extends JpaRepository<NFT, BigInteger> {
     Page<NFT> findByIsListedTrue(Pageable pageable);
-    Page<NFT> findByOwner(String owner, Pageable pageable);
+    Page<NFT> findByIsListedTrueAndOwnerNot(String owner, Pageable pageable);
+    Page<NFT> findByIsListedTrueAndOwner(String owner, Pageable pageable);
+    // purchased: không niêm yết, account đang giữ và không phải người mint (owner = account, seller <> account)
+    Page<NFT> findByIsListedFalseAndOwnerAndSellerNot(String owner, String seller, Pageable pageable);
+
+    // Slice: không chạy COUNT, chỉ lấy dư một bản ghi để biết còn trang sau
+    Slice<NFT> findSliceByIsListedTrue(Pageable pageable);
+    Slice<NFT> findSliceByIsListedTrueAndOwnerNot(String owner, Pageable pageable);
+    Slice<NFT> findSliceByIsListedTrueAndOwner(String owner, Pageable pageable);
+    Slice<NFT> findSliceByIsListedFalseAndOwnerAndSellerNot(String owner, String seller, Pageable pageable);
+
+    long countByIsListedTrue();
+    long countByIsListedTrueAndOwnerNot(String owner);
+    long countByIsListedTrueAndOwner(String owner);
+    long countByIsListedFalseAndOwnerAndSellerNot(String owner, String seller);
+
+    // Keyset: token_id > after theo thứ tự tăng dần, dùng đúng các index (is_listed, token_id) / (owner, is_listed, token_id)
+    List<NFT> findByIsListedTrueAndTokenIdGreaterThanOrderByTokenIdAsc(BigInteger after, Limit limit);
+    List<NFT> findByIsListedTrueAndOwnerNotAndTokenIdGreaterThanOrderByTokenIdAsc(String owner, BigInteger after, Limit limit);
+    List<NFT> findByIsListedTrueAndOwnerAndTokenIdGreaterThanOrderByTokenIdAsc(String owner, BigInteger after, Limit limit);
+    List<NFT> findByIsListedFalseAndOwnerAndSellerNotAndTokenIdGreaterThanOrderByTokenIdAsc(String owner, String seller, BigInteger after, Limit limit);
+    List<NFT> findTop100ByEnergyTypeAndTokenIdGreaterThanOrderByTokenIdAsc(String energyType, BigInteger after);
+    List<NFT> findTop50ByTokenIdGreaterThanOrderByTokenIdAsc(BigInteger tokenId);
 } 
\ No newline at end of file
@@ -30,6 +30,11 @@ public interface TransactionHistoryRepository extends JpaRepository<TransactionH
     // 3. Đếm số lần NFT được bán (Giữ nguyên)
     long countByTokenId(BigInteger tokenId);
 
+    // 3b. Số lần bán của nhiều NFT trong một truy vấn: [token_id, count]
+    @Query(value = "SELECT token_id, COUNT(*) FROM transaction_history WHERE token_id IN (:tokenIds) GROUP BY token_id",
+           nativeQuery = true)
+    List<Object[]> getTradeCounts(@Param("tokenIds") List<BigInteger> tokenIds);
+
     // 4. Đếm tổng giao dịch của User (THÊM MỚI)
     long countBySeller(String seller);
     
@@ -1,224 +1,848 @@
 package com.energymarket.service;
 
+import com.energymarket.contracts.EnergyLending;
+import com.energymarket.contracts.EnergyLending.LoanCreatedEventResponse;
+import com.energymarket.contracts.EnergyLending.LoanRepaidEventResponse;
 import com.energymarket.contracts.EnergyMarketplace;
+import com.energymarket.contracts.EnergyMarketplace.ListingCancelledEventResponse;
+import com.energymarket.contracts.EnergyMarketplace.ListingUpdatedEventResponse;
 import com.energymarket.contracts.EnergyMarketplace.NFTSoldEventResponse;
 import com.energymarket.contracts.EnergyMarketplace.NFTMintedAndListedEventResponse;
-import com.energymarket.dto.NFTAttributeDto;
-import com.energymarket.dto.NFTMetadataDto;
-import com.energymarket.model.NFT;
-import com.energymarket.model.TransactionHistory;
-import com.energymarket.repository.NFTRepository;
-import com.energymarket.repository.TransactionHistoryRepository;
+import com.energymarket.contracts.EnergyNFT;
+import com.energymarket.contracts.EnergyNFT.EnergyBalanceUpdatedEventResponse;
+import com.energymarket.contracts.EnergyNFT.TransferEventResponse;
+import com.energymarket.contracts.LoyaltyProgram;
+import com.energymarket.contracts.LoyaltyProgram.LoyaltyPointsAddedEventResponse;
+import com.energymarket.dto.MarketplaceEventDto;
+import com.energymarket.model.BlockCheckpoint;
+import com.energymarket.model.IndexedBlock;
+import com.energymarket.repository.BlockCheckpointRepository;
+import com.energymarket.repository.IndexedBlockRepository;
+import com.energymarket.repository.IndexedEventJdbcRepository;
+import com.energymarket.repository.IndexedEventJdbcRepository.BalanceRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.ListingRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.LoanRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.LoanRepaymentRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.LoyaltyRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.MintRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.SaleRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.TransferRecord;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.web3j.abi.EventEncoder;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.web3j.abi.EventValues;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.generated.Uint256;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
 import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Response;
 import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthBlock;
 import org.web3j.protocol.core.methods.response.EthBlockNumber;
 import org.web3j.protocol.core.methods.response.EthLog;
 import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.tx.Contract;
 
 import java.math.BigInteger;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Service
 public class BlockchainEventListenerService {
 
+    private static final String ZERO_ADDRESS = "0x0000000000000000000000000000000000000000";
+
+    // Mã JSON-RPC "limit exceeded" (EIP-1474) mà Infura và nhiều node trả khi eth_getLogs vượt giới hạn
+    private static final int LIMIT_EXCEEDED_CODE = -32005;
+    // Thông báo của các provider phổ biến (Infura, Alchemy, QuickNode, Ankr, geth/erigon/besu), chữ thường
+    private static final List<String> RANGE_TOO_LARGE_MESSAGES = List.of(
+        "block range",
+        "query returned more than",
+        "response size exceeded",
+        "response size is larger than",
+        "exceed maximum block range",
+        "max allowed range",
+        "exceeds max results",
+        "too many logs"
+    );
+
     private final Web3j web3j;
     private final EnergyMarketplace marketplace;
+    private final EnergyNFT energyNFT;
+    private final EnergyLending energyLending;
+    private final LoyaltyProgram loyaltyProgram;
     private final MarketplaceService marketplaceService;
-    private final TransactionHistoryRepository transactionHistoryRepository;
-    private final NFTRepository nftRepository;
-    private final NFTMetadataService nftMetadataService;
+    private final IndexedEventJdbcRepository eventJdbcRepository;
+    private final NFTEnrichmentService enrichmentService;
+    private final MarketplaceEventStreamService eventStreamService;
+    private final BlockCheckpointRepository checkpointRepository;
+    private final IndexedBlockRepository indexedBlockRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final EventLogDispatcher eventDispatcher;
+
+    // Block bắt đầu khi chưa có checkpoint (-1 = bắt đầu từ head hiện tại)
+    @Value("${indexer.start-block:-1}")
+    private long startBlock;
+
+    // Không có checkpoint và start-block: đọc head, lỗi thì thử lại rồi dừng khởi động (không quét lại từ genesis)
+    @Value("${indexer.init.max-attempts:5}")
+    private int initMaxAttempts;
+
+    @Value("${indexer.init.retry-delay-ms:2000}")
+    private long initRetryDelayMs;
+
+    // Range eth_getLogs thích ứng: tăng gấp đôi khi provider chấp nhận, giảm một nửa khi bị từ chối
+    @Value("${indexer.range.initial:5}")
+    private long initialBlockRange;
+
+    @Value("${indexer.range.min:1}")
+    private long minBlockRange;
+
+    @Value("${indexer.range.max:2000}")
+    private long maxBlockRange;
+
+    // Giới hạn số range mỗi lần poll để một lần catch-up dài không giữ thread scheduler hàng giờ
+    @Value("${indexer.range.max-per-poll:50}")
+    private int maxRangesPerPoll;
+
+    // Chỉ index tới (head - confirmations) để tránh phần lớn reorg nhỏ
+    @Value("${indexer.confirmations:2}")
+    private long confirmations;
+
+    // Số block tối đa mỗi JSON-RPC batch khi đọc timestamp của block
+    @Value("${rpc.batch.max-size:100}")
+    private int maxRpcBatchSize;
 
-    @Value("${ipfs.gateway.url:https://gateway.pinata.cloud/ipfs/}")
-    private String ipfsGatewayUrl;
+    // Số block gần nhất được lưu hash để phát hiện reorg sâu hơn confirmations
+    @Value("${indexer.reorg-window:64}")
+    private long reorgWindow;
 
-    private BigInteger lastProcessedBlock;
-    // Alchemy Free Tier giới hạn, để 5 block cho an toàn tuyệt đối
-    private static final BigInteger MAX_BLOCK_RANGE = BigInteger.valueOf(5);
+    // Khi subscription WebSocket đang hoạt động, poller chỉ chạy thưa để chốt checkpoint và kiểm tra reorg
+    @Value("${indexer.websocket.poll-interval-ms:60000}")
+    private long pushModePollIntervalMs;
+
+    private String checkpointKey;
+    private volatile BigInteger lastProcessedBlock;
+    private volatile boolean pushActive;
+    private long lastPollAt;
+    // Block đã được ghi tạm từ subscription (chưa qua confirmations) -> mọi hash đã nhận ở độ cao đó
+    // (block thay thế cùng độ cao cũng có thể được đẩy về)
+    private final ConcurrentSkipListMap<BigInteger, Set<String>> pushedBlocks = new ConcurrentSkipListMap<>();
+    private final Object commitLock = new Object();
+    private final AtomicLong currentBlockRange = new AtomicLong();
+    private final AtomicLong blockLag = new AtomicLong();
 
     public BlockchainEventListenerService(
         Web3j web3j,
         EnergyMarketplace marketplace,
+        EnergyNFT energyNFT,
+        EnergyLending energyLending,
+        LoyaltyProgram loyaltyProgram,
         MarketplaceService marketplaceService,
-        TransactionHistoryRepository transactionHistoryRepository,
-        NFTRepository nftRepository,
-        NFTMetadataService nftMetadataService
+        IndexedEventJdbcRepository eventJdbcRepository,
+        NFTEnrichmentService enrichmentService,
+        MarketplaceEventStreamService eventStreamService,
+        BlockCheckpointRepository checkpointRepository,
+        IndexedBlockRepository indexedBlockRepository,
+        TransactionTemplate transactionTemplate,
+        EventLogDispatcher eventDispatcher,
+        MeterRegistry meterRegistry
     ) {
         this.web3j = web3j;
         this.marketplace = marketplace;
+        this.energyNFT = energyNFT;
+        this.energyLending = energyLending;
+        this.loyaltyProgram = loyaltyProgram;
         this.marketplaceService = marketplaceService;
-        this.transactionHistoryRepository = transactionHistoryRepository;
-        this.nftRepository = nftRepository;
-        this.nftMetadataService = nftMetadataService;
+        this.eventJdbcRepository = eventJdbcRepository;
+        this.enrichmentService = enrichmentService;
+        this.eventStreamService = eventStreamService;
+        this.checkpointRepository = checkpointRepository;
+        this.indexedBlockRepository = indexedBlockRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.eventDispatcher = eventDispatcher;
+
+        Gauge.builder("indexer.block.range", currentBlockRange, AtomicLong::get)
+            .description("Current eth_getLogs block range")
+            .register(meterRegistry);
+        Gauge.builder("indexer.block.lag", blockLag, AtomicLong::get)
+            .description("Blocks between chain head and last processed block")
+            .register(meterRegistry);
     }
 
     @PostConstruct
     public void init() {
-        try {
-            EthBlockNumber blockNumber = web3j.ethBlockNumber().send();
-            this.lastProcessedBlock = blockNumber.getBlockNumber();
-            log.info("System initialized. Starting STATELESS polling from block: {}", lastProcessedBlock);
-        } catch (Exception e) {
-            log.error("Failed to get initial block number", e);
-            this.lastProcessedBlock = BigInteger.ZERO;
+        registerMarketplaceHandlers();
+        registerAccountHandlers();
+        this.currentBlockRange.set(initialBlockRange);
+        this.checkpointKey = marketplace.getContractAddress().toLowerCase();
+
+        // Ưu tiên checkpoint đã lưu trong DB để không mất event khi restart
+        BlockCheckpoint checkpoint = checkpointRepository.findById(checkpointKey).orElse(null);
+        if (checkpoint != null) {
+            this.lastProcessedBlock = checkpoint.getLastProcessedBlock();
+            log.info("Resuming from checkpoint: last processed block {} for {}", lastProcessedBlock, checkpointKey);
+        } else if (startBlock >= 0) {
+            this.lastProcessedBlock = BigInteger.valueOf(startBlock).subtract(BigInteger.ONE);
+            log.info("No checkpoint found. Starting from configured block: {}", startBlock);
+        } else {
+            BigInteger head = fetchInitialHead();
+            this.lastProcessedBlock = head.subtract(BigInteger.ONE);
+            log.info("No checkpoint found. Starting from current head: {}", head);
+        }
+
+        migrateLegacyRows();
+    }
+
+    // Dòng nfts ghi trước khi có cột last_event_block / seller (kể cả DB nâng cấp từ bản chưa có checkpoint).
+    // Chạy mỗi lần khởi động, chỉ đụng dòng còn NULL nên lần sau không làm gì
+    private void migrateLegacyRows() {
+        int initialized = eventJdbcRepository.initLastEventBlock(lastProcessedBlock);
+        if (initialized > 0) {
+            log.info("Set last_event_block = {} on {} NFTs indexed before it was tracked", lastProcessedBlock, initialized);
+        }
+        int sellers = eventJdbcRepository.initSellers();
+        if (sellers > 0) {
+            log.info("Set seller on {} NFTs indexed before it was tracked", sellers);
+        }
+    }
+
+    private BigInteger fetchInitialHead() {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                EthBlockNumber blockNumber = web3j.ethBlockNumber().send();
+                if (blockNumber.hasError()) {
+                    throw new IllegalStateException("eth_blockNumber failed: " + blockNumber.getError().getMessage());
+                }
+                return blockNumber.getBlockNumber();
+            } catch (Exception e) {
+                if (attempt >= initMaxAttempts) {
+                    throw new IllegalStateException(
+                        "Failed to get initial block number after " + attempt + " attempts; set indexer.start-block or fix the RPC node", e);
+                }
+                log.warn("Failed to get initial block number (attempt {}/{}): {}", attempt, initMaxAttempts, e.getMessage());
+                try {
+                    Thread.sleep(initRetryDelayMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while getting initial block number", ie);
+                }
+            }
         }
     }
 
     @Scheduled(fixedDelay = 5000)
     public void pollBlockchainEvents() {
+        long now = System.currentTimeMillis();
+        if (pushActive && now - lastPollAt < pushModePollIntervalMs) return;
+        lastPollAt = now;
+
         try {
-            BigInteger currentBlockChainHead = web3j.ethBlockNumber().send().getBlockNumber();
+            BigInteger chainHead = web3j.ethBlockNumber().send().getBlockNumber();
+            BigInteger confirmedHead = chainHead.subtract(BigInteger.valueOf(confirmations));
 
-            if (currentBlockChainHead.compareTo(lastProcessedBlock) <= 0) {
-                return;
-            }
+            // Kiểm tra reorg trước khi quét tiếp; nếu có thì rollback và quét lại từ điểm rẽ nhánh
+            checkForReorg();
 
-            BigInteger endBlock = currentBlockChainHead;
-            BigInteger diff = currentBlockChainHead.subtract(lastProcessedBlock);
+            // Catch-up: quét liên tục (tối đa maxRangesPerPoll range) thay vì chờ 5s mỗi range
+            int ranges = 0;
+            while (lastProcessedBlock.compareTo(confirmedHead) < 0) {
+                if (ranges++ >= maxRangesPerPoll) {
+                    log.info("Reached {} ranges this poll, {} blocks behind; continuing next poll", maxRangesPerPoll, blockLag.get());
+                    return;
+                }
+                blockLag.set(confirmedHead.subtract(lastProcessedBlock).longValue());
 
-            // Chia nhỏ range để không bị lỗi quá tải
-            if (diff.compareTo(MAX_BLOCK_RANGE) > 0) {
-                endBlock = lastProcessedBlock.add(MAX_BLOCK_RANGE);
-            }
+                BigInteger fromBlock = lastProcessedBlock.add(BigInteger.ONE);
+                long range = currentBlockRange.get();
+                BigInteger endBlock = confirmedHead.min(fromBlock.add(BigInteger.valueOf(range - 1)));
+
+                log.info("Scanning Blockchain: Block {} -> {} (range {}, lag {})",
+                    fromBlock, endBlock, range, blockLag.get());
 
-            log.info("Scanning Blockchain (Stateless): Block {} -> {}", lastProcessedBlock, endBlock);
+                try {
+                    // --- CÁCH GỌI MỚI: DÙNG ETH_GETLOGS TRỰC TIẾP (KHÔNG DÙNG FILTER) ---
+                    processEventsInRange(fromBlock, endBlock);
+                } catch (Exception e) {
+                    // Kiểm tra rate-limit trước: vài provider dùng cùng mã -32005 cho cả hai loại lỗi
+                    if (isRateLimited(e)) {
+                        // Bị rate-limit: giảm range và đợi lần poll sau
+                        shrinkBlockRange(range, e);
+                        return;
+                    }
+                    if (range > minBlockRange && isRangeTooLarge(e)) {
+                        shrinkBlockRange(range, e);
+                        continue;
+                    }
+                    throw e;
+                }
 
-            // --- CÁCH GỌI MỚI: DÙNG ETH_GETLOGS TRỰC TIẾP (KHÔNG DÙNG FILTER) ---
-            processEventsInRange(lastProcessedBlock, endBlock);
+                currentBlockRange.set(Math.min(maxBlockRange, range * 2));
+            }
 
-            // Cập nhật block
-            lastProcessedBlock = endBlock.add(BigInteger.ONE);
+            blockLag.set(0);
 
         } catch (Exception e) {
             log.error("Critical error during polling: {}", e.getMessage());
         }
     }
 
-    private void processEventsInRange(BigInteger start, BigInteger end) {
-        try {
-            DefaultBlockParameter startParam = DefaultBlockParameter.valueOf(start);
-            DefaultBlockParameter endParam = DefaultBlockParameter.valueOf(end);
-
-            // Tạo bộ lọc thủ công
-            EthFilter filter = new EthFilter(startParam, endParam, marketplace.getContractAddress());
-            
-            // Gọi trực tiếp eth_getLogs (Stateless call)
-            EthLog ethLog = web3j.ethGetLogs(filter).send();
-            List<EthLog.LogResult> logs = ethLog.getLogs();
-
-            for (EthLog.LogResult logResult : logs) {
-                Log logData = (Log) logResult.get();
-                List<String> topics = logData.getTopics();
-
-                if (topics == null || topics.isEmpty()) continue;
-
-                String eventSignature = topics.get(0);
-
-                // Kiểm tra xem log này thuộc sự kiện nào dựa trên mã băm (Signature)
-                if (eventSignature.equals(EventEncoder.encode(EnergyMarketplace.NFTSOLD_EVENT))) {
-                    // Convert log thô sang Object NFTSold
-                    NFTSoldEventResponse typedEvent = EnergyMarketplace.getNFTSoldEventFromLog(logData);
-                    handleNFTSoldEvent(typedEvent);
-                } 
-                else if (eventSignature.equals(EventEncoder.encode(EnergyMarketplace.NFTMINTEDANDLISTED_EVENT))) {
-                    // Convert log thô sang Object Mint
-                    NFTMintedAndListedEventResponse typedEvent = EnergyMarketplace.getNFTMintedAndListedEventFromLog(logData);
-                    handleMintEvent(typedEvent);
+    private void shrinkBlockRange(long range, Exception cause) {
+        long shrunk = Math.max(minBlockRange, range / 2);
+        currentBlockRange.set(shrunk);
+        log.warn("Provider rejected block range {} ({}). Shrinking to {}", range, cause.getMessage(), shrunk);
+    }
+
+    // Chỉ các lỗi provider trả khi range/kết quả eth_getLogs quá lớn; lỗi khác (node, mạng...) không được thu nhỏ range
+    static boolean isRangeTooLarge(Exception e) {
+        String message = errorMessage(e);
+        return (e instanceof JsonRpcException rpc && rpc.getCode() == LIMIT_EXCEEDED_CODE)
+            || RANGE_TOO_LARGE_MESSAGES.stream().anyMatch(message::contains);
+    }
+
+    // Lỗi mạng, timeout, node chưa có block, rate-limit: thử lại có thể thành công. Lỗi JSON-RPC khác thì không
+    static boolean isTransient(Exception e) {
+        return isRateLimited(e) || !(e instanceof JsonRpcException);
+    }
+
+    static boolean isRateLimited(Exception e) {
+        String message = errorMessage(e);
+        return message.contains("429")
+            || message.contains("rate limit")
+            || message.contains("compute units")
+            || message.contains("capacity");
+    }
+
+    private static String errorMessage(Exception e) {
+        return e.getMessage() == null ? "" : e.getMessage().toLowerCase(Locale.ROOT);
+    }
+
+    private void processEventsInRange(BigInteger start, BigInteger end) throws Exception {
+        DecodedRange range = fetchAndDecode(start, end);
+        // Lưu hash block cuối range để lần poll sau phát hiện reorg
+        range.batch().getBlockHashes().put(end, fetchBlockHash(end));
+
+        synchronized (commitLock) {
+            // Dữ liệu đẩy qua subscription thuộc block đã bị thay thế thì xóa trước khi ghi bản chính thức
+            BigInteger discardAfter = hasOrphanedPushes(range) ? start.subtract(BigInteger.ONE) : null;
+            commitRange(range, true, discardAfter, true);
+            pushedBlocks.headMap(end, true).clear();
+
+            // Chỉ cập nhật block sau khi event + checkpoint đã commit thành công
+            lastProcessedBlock = end;
+        }
+    }
+
+    private boolean hasOrphanedPushes(DecodedRange range) {
+        Map<BigInteger, String> canonical = range.batch().getBlockHashes();
+        return pushedBlocks.subMap(range.fromBlock(), true, range.toBlock(), true).entrySet().stream()
+            .anyMatch(pushed -> pushed.getValue().stream()
+                .anyMatch(hash -> !hash.equalsIgnoreCase(canonical.getOrDefault(pushed.getKey(), ""))));
+    }
+
+    // --- CHẾ ĐỘ WEBSOCKET (LogSubscriptionService gọi vào) ---
+
+    public void setPushActive(boolean active) {
+        this.pushActive = active;
+        log.info("WebSocket log subscription {}, poller interval {}", active ? "active" : "inactive",
+            active ? pushModePollIntervalMs + " ms" : "5000 ms");
+    }
+
+    // Ghi ngay log mới (chưa đủ confirmations) mà không dời checkpoint; poller sẽ xác nhận lại sau
+    public void onPushedLog(Log logData) {
+        if (logData.getBlockNumber() == null || logData.getBlockHash() == null) return;
+
+        synchronized (commitLock) {
+            BigInteger block = logData.getBlockNumber();
+            if (block.compareTo(lastProcessedBlock) <= 0) return;
+
+            if (logData.isRemoved()) {
+                discardPushedFrom(block, logData.getBlockHash());
+                return;
+            }
+
+            IndexedEventBatch batch = new IndexedEventBatch();
+            if (!eventDispatcher.dispatch(logData, batch)) return;
+            try {
+                loadBlockTimestamps(batch);
+            } catch (Exception e) {
+                // Poller sẽ index log này khi block đủ confirmations
+                log.warn("Failed to read timestamp of pushed block {}: {}", block, e.getMessage());
+                return;
+            }
+
+            pushedBlocks.computeIfAbsent(block, height -> ConcurrentHashMap.newKeySet())
+                .add(logData.getBlockHash().toLowerCase(Locale.ROOT));
+            commitRange(new DecodedRange(block, block, batch), false, null, true);
+        }
+    }
+
+    // Node báo log đã bị loại khỏi chain (removed: true, tín hiệu reorg): xóa dữ liệu đẩy từ độ cao đó trở đi,
+    // poller index lại bản chính thức khi đủ confirmations. Gọi trong commitLock.
+    private void discardPushedFrom(BigInteger block, String blockHash) {
+        // Mỗi log bị loại có một notification riêng: chỉ xử lý lần đầu
+        Set<String> hashes = pushedBlocks.get(block);
+        if (hashes == null || !hashes.contains(blockHash.toLowerCase(Locale.ROOT))) return;
+
+        BigInteger discardAfter = block.subtract(BigInteger.ONE);
+        log.warn("Node removed pushed logs of block {} ({}), discarding pushed events after block {}", block, blockHash, discardAfter);
+        Set<BigInteger> affectedTokens = transactionTemplate.execute(status -> eventJdbcRepository.rollbackAfter(discardAfter));
+        pushedBlocks.tailMap(discardAfter, false).clear();
+        restoreListings(affectedTokens, discardAfter);
+
+        // Thay đổi đã đẩy cho client không còn đúng
+        eventStreamService.publish(List.of(MarketplaceEventDto.builder().type(MarketplaceEventDto.RESYNC).build()));
+    }
+
+    // Mỗi block có mint/bán/transfer chỉ đọc timestamp một lần, gộp vào JSON-RPC batch
+    private void loadBlockTimestamps(IndexedEventBatch batch) throws Exception {
+        Set<BigInteger> blocks = new TreeSet<>();
+        batch.getMints().forEach(mint -> blocks.add(mint.blockNumber()));
+        batch.getSales().forEach(sale -> blocks.add(sale.blockNumber()));
+        batch.getTransfers().forEach(transfer -> blocks.add(transfer.blockNumber()));
+        if (blocks.isEmpty()) return;
+
+        List<BigInteger> numbers = new ArrayList<>(blocks);
+        for (int i = 0; i < numbers.size(); i += maxRpcBatchSize) {
+            BatchRequest request = web3j.newBatch();
+            numbers.subList(i, Math.min(numbers.size(), i + maxRpcBatchSize))
+                .forEach(number -> request.add(web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(number), false)));
+
+            for (Response<?> response : request.send().getResponses()) {
+                if (response instanceof EthBlock ethBlock && ethBlock.getBlock() != null) {
+                    EthBlock.Block block = ethBlock.getBlock();
+                    batch.getBlockTimestamps().put(block.getNumber(),
+                        LocalDateTime.ofInstant(Instant.ofEpochSecond(block.getTimestamp().longValueExact()), ZoneId.systemDefault()));
                 }
             }
+        }
 
-        } catch (Exception e) {
-            log.error("Error fetching logs in range [{} - {}]: {}", start, end, e.getMessage());
+        // Thiếu timestamp thì bỏ cả range (lần poll sau thử lại) thay vì ghi ngày hiện tại cho giao dịch cũ
+        blocks.removeAll(batch.getBlockTimestamps().keySet());
+        if (!blocks.isEmpty()) {
+            throw new IllegalStateException("eth_getBlockByNumber returned no block for " + blocks);
         }
     }
 
-    // --- LOGIC XỬ LÝ DATABASE GIỮ NGUYÊN ---
+    private String fetchBlockHash(BigInteger blockNumber) throws Exception {
+        EthBlock.Block block = web3j.ethGetBlockByNumber(DefaultBlockParameter.valueOf(blockNumber), false)
+            .send()
+            .getBlock();
+        return block != null ? block.getHash() : null;
+    }
 
-    private void handleNFTSoldEvent(NFTSoldEventResponse event) {
-        try {
-            BigInteger tokenId = event.tokenId.getValue();
-            
-            // Check trùng lặp giao dịch (đề phòng quét lại block cũ)
-            // (Đơn giản hóa: Cứ lưu, ID tự tăng sẽ lo phần unique)
-            TransactionHistory history = TransactionHistory.builder()
-                .tokenId(tokenId)
-                .seller(event.seller.getValue())
-                .buyer(event.buyer.getValue())
-                .price(event.price.getValue())
-                .fee(event.fee.getValue())
-                .transactionDate(LocalDateTime.now())
-                .build();
-            
-            transactionHistoryRepository.save(history);
-            log.info(">>> SUCCESS: SAVED TRANSACTION for Token #{}", tokenId);
-            
-            marketplaceService.evictItem(tokenId);
-            
-            NFT nft = nftRepository.findById(tokenId).orElse(null);
-            if (nft != null) {
-                nft.setListed(false);
-                nft.setOwner(event.buyer.getValue());
-                nftRepository.save(nft);
+    // So sánh hash các block đã index với chain hiện tại; nếu khác thì rollback về block chung cuối cùng
+    private void checkForReorg() throws Exception {
+        List<IndexedBlock> window = indexedBlockRepository.findAllByOrderByBlockNumberDesc();
+        if (window.isEmpty()) return;
+
+        // Node chưa trả về block (null) thì bỏ qua lần kiểm tra này
+        IndexedBlock latest = window.get(0);
+        String latestHash = fetchBlockHash(latest.getBlockNumber());
+        if (latestHash == null || latest.getBlockHash().equalsIgnoreCase(latestHash)) {
+            return;
+        }
+
+        // Đi lùi trong cửa sổ để tìm block cuối cùng còn nằm trên chain chính
+        BigInteger forkBlock = null;
+        for (IndexedBlock block : window) {
+            if (block.getBlockHash().equalsIgnoreCase(fetchBlockHash(block.getBlockNumber()))) {
+                forkBlock = block.getBlockNumber();
+                break;
             }
-        } catch (Exception e) {
-            log.error("Error saving Sold event", e);
         }
+        if (forkBlock == null) {
+            forkBlock = window.get(window.size() - 1).getBlockNumber().subtract(BigInteger.ONE);
+            log.error("Reorg deeper than the {}-block window, rolling back the whole window", reorgWindow);
+        }
+
+        rollbackTo(forkBlock);
     }
 
-    private void handleMintEvent(NFTMintedAndListedEventResponse event) {
+    private void rollbackTo(BigInteger forkBlock) {
+        log.warn("Chain reorg detected! Rolling back indexed data after block {} (last processed {})", forkBlock, lastProcessedBlock);
+
+        Set<BigInteger> affectedTokens;
+        synchronized (commitLock) {
+            affectedTokens = transactionTemplate.execute(status -> {
+                Set<BigInteger> tokens = eventJdbcRepository.rollbackAfter(forkBlock);
+                indexedBlockRepository.deleteNewerThan(forkBlock);
+                saveCheckpoint(forkBlock);
+                return tokens;
+            });
+
+            lastProcessedBlock = forkBlock;
+            pushedBlocks.tailMap(forkBlock, false).clear();
+            restoreListings(affectedTokens, forkBlock);
+        }
+        log.warn("Rolled back {} tokens, re-ingesting from block {}", affectedTokens.size(), forkBlock.add(BigInteger.ONE));
+    }
+
+    // Niêm yết/giá không lưu lịch sử theo block: sau rollback đọc lại trạng thái tại block fork từ chain.
+    // Lỗi thì để NFTReconciliationService sửa ở lần đối soát sau
+    private void restoreListings(Set<BigInteger> tokenIds, BigInteger forkBlock) {
+        if (tokenIds.isEmpty()) return;
         try {
-            BigInteger tokenId = event.tokenId.getValue();
-            if (nftRepository.existsById(tokenId)) return;
+            List<ListingRecord> restored = marketplaceService.readMarketplaceItems(tokenIds, forkBlock).entrySet().stream()
+                .map(entry -> new ListingRecord(entry.getKey(), entry.getValue().isActive(),
+                    entry.getValue().isActive() ? entry.getValue().price() : null, forkBlock))
+                .toList();
+            eventJdbcRepository.updateListings(restored);
+            log.info("Restored listing state of {}/{} tokens at block {}", restored.size(), tokenIds.size(), forkBlock);
+        } catch (Exception e) {
+            log.error("Failed to restore listing state after rollback to block {}: {}", forkBlock, e.getMessage());
+        }
+    }
+
+    // Giai đoạn 1 (không đụng DB ghi): gọi eth_getLogs và decode, có thể chạy song song nhiều range
+    public DecodedRange fetchAndDecode(BigInteger start, BigInteger end) throws Exception {
+        // Bộ lọc chỉ gồm các contract/topic đã đăng ký, provider không trả về log thừa
+        EthFilter filter = eventDispatcher.createFilter(start, end);
 
-            String rawTokenURI = event.ipfsHash.getValue();
-            log.info(">>> SUCCESS: DETECTED NEW MINT Token #{}", tokenId);
+        // Gọi trực tiếp eth_getLogs (Stateless call), ngoài transaction DB
+        EthLog ethLog = web3j.ethGetLogs(filter).send();
+        if (ethLog.hasError()) {
+            throw new JsonRpcException("eth_getLogs", ethLog.getError().getCode(), ethLog.getError().getMessage());
+        }
 
-            String httpUrl = rawTokenURI;
-            if (rawTokenURI.startsWith("ipfs://")) {
-                httpUrl = rawTokenURI.replace("ipfs://", ipfsGatewayUrl);
-            } else if (!rawTokenURI.startsWith("http")) {
-                httpUrl = ipfsGatewayUrl + rawTokenURI;
+        IndexedEventBatch batch = new IndexedEventBatch();
+        for (EthLog.LogResult logResult : ethLog.getLogs()) {
+            Log logData = (Log) logResult.get();
+            if (eventDispatcher.dispatch(logData, batch)) {
+                batch.getBlockHashes().put(logData.getBlockNumber(), logData.getBlockHash());
             }
+        }
+        loadBlockTimestamps(batch);
 
-            String energyType = "Unknown";
-            for (int i = 0; i < 3; i++) {
-                try {
-                    NFTMetadataDto metadata = nftMetadataService.fetchMetadata(httpUrl);
-                    if (metadata != null && metadata.getAttributes() != null) {
-                        for (NFTAttributeDto attr : metadata.getAttributes()) {
-                            if ("Energy Source".equalsIgnoreCase(attr.getTrait_type())) {
-                                energyType = attr.getValue();
-                                break;
-                            }
-                        }
-                        if (!"Unknown".equals(energyType)) break;
-                    }
-                } catch (Exception ex) {
-                    Thread.sleep(1000);
-                }
+        return new DecodedRange(start, end, batch);
+    }
+
+    // Giai đoạn 2: ghi event (và checkpoint nếu là poller chính) trong CÙNG một transaction.
+    // Toàn bộ event của range được gom lại và ghi theo lô; nếu lỗi thì rollback cả range.
+    // Backfill dùng: dữ liệu lịch sử không phát ra stream. Giữ commitLock như poller, subscription và rollback;
+    // range vượt quá checkpoint (đã bị rollback do reorg trong lúc backfill) thì không ghi
+    public void commitRange(DecodedRange range, boolean advanceCheckpoint) {
+        synchronized (commitLock) {
+            if (range.toBlock().compareTo(lastProcessedBlock) > 0) {
+                throw new IllegalStateException("Range [" + range.fromBlock() + " - " + range.toBlock()
+                    + "] is past the checkpoint " + lastProcessedBlock + " (rolled back during backfill)");
+            }
+            commitRange(range, advanceCheckpoint, null, false);
+        }
+    }
+
+    private void commitRange(DecodedRange range, boolean advanceCheckpoint, BigInteger discardAfter, boolean publish) {
+        IndexedEventBatch batch = range.batch();
+        List<SaleRecord> sales = batch.getSales();
+        List<MintRecord> mints = batch.getMints();
+        List<ListingRecord> listings = batch.getListings();
+
+        List<BigInteger> newMints = new ArrayList<>();
+        List<SaleRecord> newSales = new ArrayList<>();
+        List<TransferRecord> newTransfers = new ArrayList<>();
+        Set<BigInteger> discardedTokens = new HashSet<>();
+        transactionTemplate.executeWithoutResult(status -> {
+            if (discardAfter != null) {
+                log.warn("Discarding pushed events after block {}: canonical chain differs", discardAfter);
+                discardedTokens.addAll(eventJdbcRepository.rollbackAfter(discardAfter));
             }
 
-            NFT newNFT = new NFT();
-            newNFT.setTokenId(tokenId);
-            newNFT.setOwner(event.seller.getValue());
-            newNFT.setTokenURI(rawTokenURI);
-            newNFT.setEnergyAmount(event.energyValue.getValue());
-            newNFT.setPrice(event.price.getValue());
-            newNFT.setListed(true);
-            newNFT.setEnergyType(energyType);
-
-            nftRepository.save(newNFT);
-            marketplaceService.evictItem(tokenId);
-        } catch (Exception e) {
-            log.error("Error saving Mint event", e);
+            // Mint trước, bán sau: token được mint và bán trong cùng range vẫn cập nhật đúng owner
+            newMints.addAll(eventJdbcRepository.insertMints(mints, batch.getBlockTimestamps()));
+
+            eventJdbcRepository.updateListings(listings);
+
+            // Idempotent: khóa (txHash, logIndex) nên quét lại block cũ sẽ không lưu trùng
+            newSales.addAll(eventJdbcRepository.insertSales(sales, batch.getBlockTimestamps()));
+            // Áp dụng cả sale đã có: markSold bỏ qua sale cũ hơn event đã ghi, nên mint được backfill
+            // thêm lại vẫn nhận đúng owner từ các sale sau nó
+            eventJdbcRepository.markSold(sales);
+
+            // Transfer sau NFTSold: mỗi lần bán cũng có Transfer(seller -> buyer) nên Transfer cuối cùng là owner đúng
+            newTransfers.addAll(eventJdbcRepository.insertTransfers(batch.getTransfers(), batch.getBlockTimestamps()));
+            eventJdbcRepository.updateOwners(batch.getTransfers());
+
+            eventJdbcRepository.upsertBalances(batch.getBalances().values());
+            eventJdbcRepository.upsertLoyaltyPoints(batch.getLoyaltyPoints().values());
+            eventJdbcRepository.insertLoans(batch.getLoans());
+            eventJdbcRepository.markLoansRepaid(batch.getLoanRepayments());
+
+            if (advanceCheckpoint) {
+                saveCheckpoint(range.toBlock());
+                saveBlockHashes(range);
+            }
+
+            if (!newMints.isEmpty() || !newSales.isEmpty()) {
+                log.info(">>> SUCCESS: Block {} -> {}: saved {} mints, {} transactions ({} duplicates skipped)",
+                    range.fromBlock(), range.toBlock(), newMints.size(), newSales.size(), sales.size() - newSales.size());
+            }
+        });
+
+        // Sau commit: token có event trong range đã mang last_event_block mới hơn nên không bị ghi đè
+        restoreListings(discardedTokens, discardAfter);
+
+        // Chỉ token vừa được thêm mới mới cần đọc metadata
+        Set<BigInteger> inserted = new HashSet<>(newMints);
+        List<MintRecord> insertedMints = mints.stream()
+            .filter(mint -> inserted.contains(mint.tokenId()))
+            .toList();
+        insertedMints.forEach(mint -> enrichmentService.enqueue(mint.tokenId(), mint.tokenURI()));
+
+        if (publish) {
+            List<MarketplaceEventDto> events = toStreamEvents(insertedMints, newSales, walletTransfers(newTransfers, newSales), listings);
+            if (discardAfter != null) {
+                // Thay đổi đã đẩy trước đó có thể không còn đúng
+                events.add(0, MarketplaceEventDto.builder().type(MarketplaceEventDto.RESYNC).build());
+            }
+            eventStreamService.publish(events);
+        }
+    }
+
+    // Transfer không phải mint và không nằm trong giao dịch mua trên marketplace
+    private static List<TransferRecord> walletTransfers(List<TransferRecord> transfers, List<SaleRecord> sales) {
+        Set<String> saleTxs = new HashSet<>();
+        sales.forEach(sale -> saleTxs.add(sale.txHash()));
+        return transfers.stream()
+            .filter(transfer -> !ZERO_ADDRESS.equals(transfer.from()) && !saleTxs.contains(transfer.txHash()))
+            .toList();
+    }
+
+    private static List<MarketplaceEventDto> toStreamEvents(
+        List<MintRecord> mints,
+        List<SaleRecord> sales,
+        List<TransferRecord> transfers,
+        List<ListingRecord> listings
+    ) {
+        List<MarketplaceEventDto> events = new ArrayList<>(mints.size() + sales.size() + transfers.size() + listings.size());
+        mints.forEach(mint -> events.add(MarketplaceEventDto.builder()
+            .type(MarketplaceEventDto.MINT)
+            .tokenId(mint.tokenId().toString())
+            .owner(mint.owner())
+            .price(mint.price().toString())
+            .energyAmount(mint.energyAmount().toString())
+            .listed(true)
+            .blockNumber(mint.blockNumber().toString())
+            .build()));
+        sales.forEach(sale -> events.add(MarketplaceEventDto.builder()
+            .type(MarketplaceEventDto.SALE)
+            .tokenId(sale.tokenId().toString())
+            .seller(sale.seller())
+            .buyer(sale.buyer())
+            .owner(sale.buyer())
+            .price(sale.price().toString())
+            .listed(false)
+            .blockNumber(sale.blockNumber().toString())
+            .txHash(sale.txHash())
+            .build()));
+        transfers.forEach(transfer -> events.add(MarketplaceEventDto.builder()
+            .type(MarketplaceEventDto.TRANSFER)
+            .tokenId(transfer.tokenId().toString())
+            .seller(transfer.from())
+            .owner(transfer.to())
+            .blockNumber(transfer.blockNumber().toString())
+            .txHash(transfer.txHash())
+            .build()));
+        listings.forEach(listing -> events.add(MarketplaceEventDto.builder()
+            .type(MarketplaceEventDto.LISTING)
+            .tokenId(listing.tokenId().toString())
+            .listed(listing.listed())
+            .price(listing.price() != null ? listing.price().toString() : null)
+            .build()));
+        return events;
+    }
+
+    public BigInteger getLastProcessedBlock() {
+        return lastProcessedBlock;
+    }
+
+    private void saveBlockHashes(DecodedRange range) {
+        List<IndexedBlock> blocks = new ArrayList<>();
+        range.batch().getBlockHashes().forEach((number, hash) -> {
+            if (hash != null) {
+                blocks.add(IndexedBlock.builder().blockNumber(number).blockHash(hash).build());
+            }
+        });
+        indexedBlockRepository.saveAll(blocks);
+        // Chỉ giữ lại cửa sổ reorg-window block gần nhất
+        indexedBlockRepository.deleteOlderThan(range.toBlock().subtract(BigInteger.valueOf(reorgWindow)));
+    }
+
+    private void saveCheckpoint(BigInteger block) {
+        checkpointRepository.save(BlockCheckpoint.builder()
+            .contractAddress(checkpointKey)
+            .lastProcessedBlock(block)
+            .build());
+    }
+
+    // --- HANDLER CHO TỪNG LOẠI EVENT (chạy ở bước decode) ---
+
+    private void registerMarketplaceHandlers() {
+        String address = marketplace.getContractAddress();
+        eventDispatcher.register(address, EnergyMarketplace.NFTMINTEDANDLISTED_EVENT,
+            EnergyMarketplace::getNFTMintedAndListedEventFromLog, this::onNFTMintedAndListed);
+        eventDispatcher.register(address, EnergyMarketplace.NFTSOLD_EVENT,
+            EnergyMarketplace::getNFTSoldEventFromLog, this::onNFTSold);
+        eventDispatcher.register(address, EnergyMarketplace.LISTINGCANCELLED_EVENT,
+            EnergyMarketplace::getListingCancelledEventFromLog, this::onListingCancelled);
+        eventDispatcher.register(address, EnergyMarketplace.LISTINGUPDATED_EVENT,
+            EnergyMarketplace::getListingUpdatedEventFromLog, this::onListingUpdated);
+    }
+
+    // EnergyNFT / EnergyLending / LoyaltyProgram dùng chung filter eth_getLogs với marketplace
+    private void registerAccountHandlers() {
+        eventDispatcher.register(energyNFT.getContractAddress(), EnergyNFT.ENERGYBALANCEUPDATED_EVENT,
+            EnergyNFT::getEnergyBalanceUpdatedEventFromLog, this::onEnergyBalanceUpdated);
+        // Chỉ mục owner: trang "purchased"/"listing" đọc nfts.owner, không gọi ownerOf
+        eventDispatcher.register(energyNFT.getContractAddress(), EnergyNFT.TRANSFER_EVENT,
+            EnergyNFT::getTransferEventFromLog, this::onTransfer);
+        eventDispatcher.register(loyaltyProgram.getContractAddress(), LoyaltyProgram.LOYALTYPOINTSADDED_EVENT,
+            LoyaltyProgram::getLoyaltyPointsAddedEventFromLog, this::onLoyaltyPointsAdded);
+        eventDispatcher.register(energyLending.getContractAddress(), EnergyLending.LOANCREATED_EVENT,
+            BlockchainEventListenerService::decodeLoanCreated, this::onLoanCreated);
+        eventDispatcher.register(energyLending.getContractAddress(), EnergyLending.LOANREPAID_EVENT,
+            BlockchainEventListenerService::decodeLoanRepaid, this::onLoanRepaid);
+    }
+
+    private void onTransfer(IndexedEventBatch batch, TransferEventResponse event) {
+        batch.addTransfer(new TransferRecord(
+            event.tokenId.getValue(),
+            event.from.getValue(),
+            event.to.getValue(),
+            event.log.getBlockNumber(),
+            event.log.getTransactionHash(),
+            event.log.getLogIndex().intValue()
+        ));
+    }
+
+    private void onEnergyBalanceUpdated(IndexedEventBatch batch, EnergyBalanceUpdatedEventResponse event) {
+        batch.putBalance(new BalanceRecord(
+            event.user.getValue(),
+            event.newBalance.getValue(),
+            event.log.getBlockNumber()
+        ));
+    }
+
+    // LoyaltyPointsAdded phát ra tổng điểm hiện tại của user, không phải số điểm cộng thêm
+    private void onLoyaltyPointsAdded(IndexedEventBatch batch, LoyaltyPointsAddedEventResponse event) {
+        batch.putLoyaltyPoints(new LoyaltyRecord(
+            event.user.getValue(),
+            event.points.getValue(),
+            event.log.getBlockNumber()
+        ));
+    }
+
+    private void onLoanCreated(IndexedEventBatch batch, LoanCreatedEventResponse event) {
+        batch.addLoan(new LoanRecord(
+            event.loanId.getValue(),
+            event.borrower.getValue(),
+            event.repayment.getValue(),
+            event.energyAmount.getValue(),
+            event.log.getBlockNumber(),
+            event.log.getTransactionHash()
+        ));
+    }
+
+    private void onLoanRepaid(IndexedEventBatch batch, LoanRepaidEventResponse event) {
+        batch.addLoanRepayment(new LoanRepaymentRecord(
+            event.loanId.getValue(),
+            event.amountPaid.getValue(),
+            event.log.getBlockNumber()
+        ));
+    }
+
+    // EnergyLending.java được viết tay, không có getXxxEventFromLog như các wrapper sinh tự động
+    private static LoanCreatedEventResponse decodeLoanCreated(Log log) {
+        EventValues values = Contract.staticExtractEventParameters(EnergyLending.LOANCREATED_EVENT, log);
+        LoanCreatedEventResponse event = new LoanCreatedEventResponse();
+        event.log = log;
+        event.loanId = (Uint256) values.getIndexedValues().get(0);
+        event.borrower = (Address) values.getIndexedValues().get(1);
+        event.repayment = (Uint256) values.getNonIndexedValues().get(0);
+        event.energyAmount = (Uint256) values.getNonIndexedValues().get(1);
+        return event;
+    }
+
+    private static LoanRepaidEventResponse decodeLoanRepaid(Log log) {
+        EventValues values = Contract.staticExtractEventParameters(EnergyLending.LOANREPAID_EVENT, log);
+        LoanRepaidEventResponse event = new LoanRepaidEventResponse();
+        event.log = log;
+        event.loanId = (Uint256) values.getIndexedValues().get(0);
+        event.borrower = (Address) values.getIndexedValues().get(1);
+        event.amountPaid = (Uint256) values.getNonIndexedValues().get(0);
+        return event;
+    }
+
+    private void onNFTSold(IndexedEventBatch batch, NFTSoldEventResponse event) {
+        batch.addSale(new SaleRecord(
+            event.tokenId.getValue(),
+            event.seller.getValue(),
+            event.buyer.getValue(),
+            event.price.getValue(),
+            event.fee.getValue(),
+            event.log.getBlockNumber(),
+            event.log.getTransactionHash(),
+            event.log.getLogIndex().intValue()
+        ));
+    }
+
+    private void onNFTMintedAndListed(IndexedEventBatch batch, NFTMintedAndListedEventResponse event) {
+        // Metadata IPFS được đọc sau commit bởi NFTEnrichmentService
+        batch.addMint(new MintRecord(
+            event.tokenId.getValue(),
+            event.seller.getValue(),
+            event.seller.getValue(),
+            event.ipfsHash.getValue(),
+            event.energyValue.getValue(),
+            event.price.getValue(),
+            NFTEnrichmentService.PENDING,
+            event.log.getBlockNumber()
+        ));
+    }
+
+    private void onListingCancelled(IndexedEventBatch batch, ListingCancelledEventResponse event) {
+        batch.addListing(new ListingRecord(event.tokenId.getValue(), false, null, event.log.getBlockNumber()));
+    }
+
+    private void onListingUpdated(IndexedEventBatch batch, ListingUpdatedEventResponse event) {
+        batch.addListing(new ListingRecord(event.tokenId.getValue(), null, event.newPrice.getValue(), event.log.getBlockNumber()));
+    }
+
+    // Node trả về lỗi JSON-RPC (khác lỗi mạng): giữ mã lỗi để phân loại range quá lớn / rate-limit
+    public static class JsonRpcException extends IllegalStateException {
+        private final int code;
+
+        public JsonRpcException(String method, int code, String message) {
+            super(method + " failed (code " + code + "): " + message);
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
         }
     }
+
+    // Range đã fetch + decode, sẵn sàng để commit theo thứ tự block
+    public record DecodedRange(
+        BigInteger fromBlock,
+        BigInteger toBlock,
+        IndexedEventBatch batch
+    ) {}
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package com.energymarket.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.FunctionReturnDecoder;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.crypto.Credentials;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthCall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Gộp nhiều eth_call (view function) vào một HTTP request bằng JSON-RPC batch
+@Slf4j
+@Component
+public class ContractBatchCaller {
+    private final Web3j web3j;
+    private final String fromAddress;
+
+    // Alchemy giới hạn số request trong một batch
+    @Value("${rpc.batch.max-size:100}")
+    private int maxBatchSize;
+
+    public ContractBatchCaller(Web3j web3j, Credentials credentials) {
+        this.web3j = web3j;
+        this.fromAddress = credentials.getAddress();
+    }
+
+    // Đọc tại một block cố định: mọi call trong nhóm thấy cùng một trạng thái chain.
+    // Kết quả theo đúng thứ tự "calls"; call lỗi/revert trả về null thay vì làm hỏng cả batch
+    public List<List<Type>> call(List<ContractCall> calls, DefaultBlockParameter block) throws Exception {
+        List<List<Type>> results = new ArrayList<>(calls.size());
+
+        for (int i = 0; i < calls.size(); i += maxBatchSize) {
+            List<ContractCall> chunk = calls.subList(i, Math.min(calls.size(), i + maxBatchSize));
+
+            BatchRequest batch = web3j.newBatch();
+            for (ContractCall call : chunk) {
+                batch.add(web3j.ethCall(
+                    Transaction.createEthCallTransaction(fromAddress, call.contractAddress(), FunctionEncoder.encode(call.function())),
+                    block));
+            }
+
+            BatchResponse response = batch.send();
+            List<? extends Response<?>> responses = response.getResponses();
+            for (int j = 0; j < chunk.size(); j++) {
+                results.add(decode(chunk.get(j), j < responses.size() ? responses.get(j) : null));
+            }
+        }
+        return results;
+    }
+
+    private static List<Type> decode(ContractCall call, Response<?> response) {
+        if (!(response instanceof EthCall ethCall) || ethCall.hasError() || ethCall.isReverted()) {
+            log.warn("Batched call {} on {} failed: {}", call.function().getName(), call.contractAddress(),
+                response != null && response.hasError() ? response.getError().getMessage() : "no response");
+            return null;
+        }
+        List<Type> values = FunctionReturnDecoder.decode(ethCall.getValue(), call.function().getOutputParameters());
+        return values.isEmpty() ? null : values;
+    }
+
+    public record ContractCall(String contractAddress, Function function) {}
+}
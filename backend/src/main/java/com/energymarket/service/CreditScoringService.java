@@ -1,6 +1,8 @@
 package com.energymarket.service;
 
 import com.energymarket.dto.CreditScoreDto;
+import com.energymarket.model.LoyaltyAccount;
+import com.energymarket.repository.LoyaltyAccountRepository;
 import com.energymarket.repository.TransactionHistoryRepository;
 import com.energymarket.contracts.LoyaltyProgram;
 import org.web3j.abi.datatypes.Address;
@@ -17,12 +19,15 @@ public class CreditScoringService {
 
     private final TransactionHistoryRepository transactionRepo;
     private final LoyaltyProgram loyaltyProgram;
+    private final LoyaltyAccountRepository loyaltyAccountRepository;
 
     public CreditScoreDto calculateCreditScore(String userAddress) {
         try {
-            // 1. Lấy điểm Loyalty từ Blockchain
-            Uint256 loyaltyPointsUint = loyaltyProgram.getLoyaltyPoints(new Address(userAddress)).send();
-            long loyalty = loyaltyPointsUint.getValue().longValue();
+            // 1. Lấy điểm Loyalty đã index từ event, chưa có thì đọc từ Blockchain
+            long loyalty = loyaltyAccountRepository.findById(userAddress.toLowerCase())
+                .map(LoyaltyAccount::getPoints)
+                .orElseGet(() -> fetchLoyaltyPoints(userAddress))
+                .longValue();
 
             // 2. Lấy tổng doanh thu từ DB (tính bằng Wei rồi đổi ra Ether)
             BigInteger totalRevenueWei = transactionRepo.sumPriceBySeller(userAddress.toLowerCase());
@@ -79,4 +84,13 @@ public class CreditScoringService {
             throw new RuntimeException("Error calculating credit score: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private BigInteger fetchLoyaltyPoints(String userAddress) {
+        try {
+            Uint256 loyaltyPointsUint = loyaltyProgram.getLoyaltyPoints(new Address(userAddress)).send();
+            return loyaltyPointsUint.getValue();
+        } catch (Exception e) {
+            throw new RuntimeException("Error reading loyalty points: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.energymarket.service;
+
+import com.energymarket.dto.BackfillStatusDto;
+import com.energymarket.service.BlockchainEventListenerService.DecodedRange;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Slf4j
+@Service
+public class EventBackfillService {
+    private final BlockchainEventListenerService listenerService;
+
+    // Virtual thread cho các lệnh eth_getLogs (I/O bound), số range chạy song song do "concurrency" giới hạn
+    private final ExecutorService fetchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    @Value("${indexer.backfill.chunk-size:2000}")
+    private long chunkSize;
+
+    @Value("${indexer.backfill.concurrency:8}")
+    private int concurrency;
+
+    @Value("${indexer.backfill.max-attempts:3}")
+    private int maxAttempts;
+
+    private volatile BackfillStatusDto status = BackfillStatusDto.builder().running(false).build();
+
+    public EventBackfillService(BlockchainEventListenerService listenerService) {
+        this.listenerService = listenerService;
+    }
+
+    public BackfillStatusDto startBackfill(BigInteger fromBlock, BigInteger toBlock) {
+        // Không backfill vượt quá checkpoint của poller chính, phần sau đó poller sẽ tự xử lý
+        BigInteger lastProcessed = listenerService.getLastProcessedBlock();
+        BigInteger endBlock = toBlock == null ? lastProcessed : toBlock.min(lastProcessed);
+
+        if (fromBlock.signum() < 0 || endBlock.compareTo(fromBlock) < 0) {
+            throw new IllegalArgumentException("Invalid block range: " + fromBlock + " -> " + endBlock);
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A backfill is already running");
+        }
+
+        status = BackfillStatusDto.builder()
+            .running(true)
+            .fromBlock(fromBlock)
+            .toBlock(endBlock)
+            .committedBlock(fromBlock.subtract(BigInteger.ONE))
+            .startedAt(LocalDateTime.now())
+            .build();
+
+        coordinator.submit(() -> runBackfill(fromBlock, endBlock));
+        return status;
+    }
+
+    public BackfillStatusDto getStatus() {
+        return status;
+    }
+
+    private void runBackfill(BigInteger fromBlock, BigInteger toBlock) {
+        log.info("Backfill started: Block {} -> {} (chunk {}, concurrency {})", fromBlock, toBlock, chunkSize, concurrency);
+        long startTime = System.nanoTime();
+        String error = null;
+
+        try {
+            // Fetch + decode song song, nhưng commit theo đúng thứ tự block (FIFO)
+            Deque<CompletableFuture<List<DecodedRange>>> inFlight = new ArrayDeque<>();
+            BigInteger nextBlock = fromBlock;
+            BigInteger chunk = BigInteger.valueOf(chunkSize);
+
+            while (nextBlock.compareTo(toBlock) <= 0 || !inFlight.isEmpty()) {
+                while (inFlight.size() < concurrency && nextBlock.compareTo(toBlock) <= 0) {
+                    BigInteger start = nextBlock;
+                    BigInteger end = toBlock.min(start.add(chunk).subtract(BigInteger.ONE));
+                    inFlight.addLast(CompletableFuture.supplyAsync(() -> fetchRange(start, end), fetchExecutor));
+                    nextBlock = end.add(BigInteger.ONE);
+                }
+
+                // Chunk bị chia nhỏ thì các phần được commit lần lượt theo block
+                for (DecodedRange range : inFlight.removeFirst().join()) {
+                    listenerService.commitRange(range, false);
+
+                    status.setCommittedBlock(range.toBlock());
+                    status.setEventsCommitted(status.getEventsCommitted() + range.batch().size());
+                }
+            }
+        } catch (Exception e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            error = cause.getMessage();
+            log.error("Backfill failed after block {}", status.getCommittedBlock(), cause);
+        } finally {
+            status.setRunning(false);
+            status.setError(error);
+            status.setFinishedAt(LocalDateTime.now());
+            running.set(false);
+        }
+
+        log.info("Backfill finished: {} events up to block {} in {} ms",
+            status.getEventsCommitted(), status.getCommittedBlock(), (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    // Provider từ chối range quá lớn (như poller, xem isRangeTooLarge) thì chia đôi đệ quy;
+    // chỉ lỗi tạm thời (mạng, timeout, rate-limit) mới được thử lại
+    List<DecodedRange> fetchRange(BigInteger start, BigInteger end) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return List.of(listenerService.fetchAndDecode(start, end));
+            } catch (Exception e) {
+                if (end.compareTo(start) > 0 && BlockchainEventListenerService.isRangeTooLarge(e)
+                    && !BlockchainEventListenerService.isRateLimited(e)) {
+                    BigInteger mid = start.add(end.subtract(start).shiftRight(1));
+                    log.debug("Range [{} - {}] too large, splitting at {}", start, end, mid);
+                    List<DecodedRange> ranges = new ArrayList<>(fetchRange(start, mid));
+                    ranges.addAll(fetchRange(mid.add(BigInteger.ONE), end));
+                    return ranges;
+                }
+                if (attempt >= maxAttempts || !BlockchainEventListenerService.isTransient(e)) {
+                    throw new CompletionException("Failed to fetch range [" + start + " - " + end + "]", e);
+                }
+                log.warn("Retrying range [{} - {}] (attempt {}): {}", start, end, attempt, e.getMessage());
+                try {
+                    Thread.sleep(1000L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(ie);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        coordinator.shutdownNow();
+        fetchExecutor.shutdownNow();
+    }
+}
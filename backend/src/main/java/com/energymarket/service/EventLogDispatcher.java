@@ -0,0 +1,88 @@
+package com.energymarket.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.web3j.abi.EventEncoder;
+import org.web3j.abi.datatypes.Event;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.BaseEventResponse;
+import org.web3j.protocol.core.methods.response.Log;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// Bảng điều phối log theo (địa chỉ contract, topic0): hash chữ ký event được tính MỘT lần khi đăng ký,
+// không còn gọi EventEncoder.encode() cho từng log trong vòng lặp
+@Slf4j
+@Component
+public class EventLogDispatcher {
+
+    private final Map<String, Route<?>> routes = new ConcurrentHashMap<>();
+    private final Set<String> addresses = ConcurrentHashMap.newKeySet();
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+    public <T extends BaseEventResponse> void register(
+        String contractAddress,
+        Event event,
+        Function<Log, T> decoder,
+        BiConsumer<IndexedEventBatch, T> handler
+    ) {
+        String address = contractAddress.toLowerCase(Locale.ROOT);
+        String topic = EventEncoder.encode(event);
+
+        routes.put(routeKey(address, topic), new Route<>(event.getName(), decoder, handler));
+        addresses.add(address);
+        topics.add(topic);
+        log.info("Registered handler for {} ({}) on {}", event.getName(), topic, address);
+    }
+
+    // Trả về false nếu log không thuộc event nào đã đăng ký
+    public boolean dispatch(Log logData, IndexedEventBatch batch) {
+        List<String> logTopics = logData.getTopics();
+        if (logTopics == null || logTopics.isEmpty() || logData.getAddress() == null) return false;
+
+        Route<?> route = routes.get(routeKey(logData.getAddress().toLowerCase(Locale.ROOT), logTopics.get(0)));
+        if (route == null) return false;
+
+        route.dispatch(logData, batch);
+        return true;
+    }
+
+    // Lọc phía provider: chỉ trả về log của các contract và event đã đăng ký
+    public EthFilter createFilter(BigInteger fromBlock, BigInteger toBlock) {
+        EthFilter filter = new EthFilter(
+            DefaultBlockParameter.valueOf(fromBlock),
+            DefaultBlockParameter.valueOf(toBlock),
+            new ArrayList<>(addresses)
+        );
+        filter.addOptionalTopics(topics.toArray(new String[0]));
+        return filter;
+    }
+
+    // Subscription WebSocket (eth_subscribe "logs") chỉ lọc theo địa chỉ, topic được lọc lại khi dispatch
+    public List<String> getAddresses() {
+        return new ArrayList<>(addresses);
+    }
+
+    private static String routeKey(String address, String topic) {
+        return address + ":" + topic.toLowerCase(Locale.ROOT);
+    }
+
+    private record Route<T extends BaseEventResponse>(
+        String eventName,
+        Function<Log, T> decoder,
+        BiConsumer<IndexedEventBatch, T> handler
+    ) {
+        void dispatch(Log logData, IndexedEventBatch batch) {
+            handler.accept(batch, decoder.apply(logData));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.energymarket.service;
+
+import com.energymarket.repository.IndexedEventJdbcRepository.BalanceRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.ListingRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.LoanRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.LoanRepaymentRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.LoyaltyRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.MintRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.SaleRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.TransferRecord;
+import lombok.Getter;
+
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Các bản ghi đã decode của một range block, được ghi xuống DB theo lô trong một transaction
+@Getter
+public class IndexedEventBatch {
+    private final List<MintRecord> mints = new ArrayList<>();
+    private final List<SaleRecord> sales = new ArrayList<>();
+    private final List<TransferRecord> transfers = new ArrayList<>();
+    private final List<ListingRecord> listings = new ArrayList<>();
+    private final List<LoanRecord> loans = new ArrayList<>();
+    private final List<LoanRepaymentRecord> loanRepayments = new ArrayList<>();
+
+    // Event mang giá trị tổng (số dư, điểm) nên mỗi user chỉ giữ event cuối cùng trong range
+    private final Map<String, BalanceRecord> balances = new LinkedHashMap<>();
+    private final Map<String, LoyaltyRecord> loyaltyPoints = new LinkedHashMap<>();
+
+    // Hash của các block có log (và block cuối range khi do poller chính xử lý)
+    private final Map<BigInteger, String> blockHashes = new HashMap<>();
+
+    // Timestamp của các block có mint/bán/transfer: ngày giao dịch là ngày của block, không phải lúc index
+    private final Map<BigInteger, LocalDateTime> blockTimestamps = new HashMap<>();
+
+    public void addMint(MintRecord mint) {
+        mints.add(mint);
+    }
+
+    public void addSale(SaleRecord sale) {
+        sales.add(sale);
+    }
+
+    public void addTransfer(TransferRecord transfer) {
+        transfers.add(transfer);
+    }
+
+    public void addListing(ListingRecord listing) {
+        listings.add(listing);
+    }
+
+    public void addLoan(LoanRecord loan) {
+        loans.add(loan);
+    }
+
+    public void addLoanRepayment(LoanRepaymentRecord repayment) {
+        loanRepayments.add(repayment);
+    }
+
+    public void putBalance(BalanceRecord balance) {
+        balances.put(balance.userAddress(), balance);
+    }
+
+    public void putLoyaltyPoints(LoyaltyRecord points) {
+        loyaltyPoints.put(points.userAddress(), points);
+    }
+
+    public int size() {
+        return mints.size() + sales.size() + transfers.size() + listings.size()
+            + loans.size() + loanRepayments.size() + balances.size() + loyaltyPoints.size();
+    }
+}
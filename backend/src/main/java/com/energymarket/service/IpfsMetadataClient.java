@@ -0,0 +1,253 @@
+package com.energymarket.service;
+
+import com.energymarket.dto.NFTMetadataDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Client IPFS bất đồng bộ (OkHttp enqueue), connection pool và timeout riêng thay vì OkHttpClient 90 giây của web3j.
+// Nội dung IPFS được hỏi song song có độ trễ (hedged) qua nhiều gateway: response thành công đầu tiên thắng,
+// các request còn lại bị hủy. Mỗi gateway có circuit breaker riêng (metric ipfs.gateway.*).
+@Slf4j
+@Component
+public class IpfsMetadataClient {
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${ipfs.gateway.url:https://gateway.pinata.cloud/ipfs/}")
+    private String primaryGateway;
+
+    // Gateway dự phòng cho hedged request, theo thứ tự ưu tiên
+    @Value("${ipfs.client.fallback-gateways:https://dweb.link/ipfs/,https://gateway.pinata.cloud/ipfs/}")
+    private List<String> fallbackGateways;
+
+    // Chờ bao lâu trước khi gửi thêm request tới gateway kế tiếp
+    @Value("${ipfs.client.hedge-delay-ms:400}")
+    private long hedgeDelayMs;
+
+    @Value("${ipfs.client.connect-timeout-ms:3000}")
+    private long connectTimeoutMs;
+
+    @Value("${ipfs.client.read-timeout-ms:8000}")
+    private long readTimeoutMs;
+
+    // Giới hạn cho cả một lần fetch (mọi gateway)
+    @Value("${ipfs.client.total-timeout-ms:15000}")
+    private long totalTimeoutMs;
+
+    @Value("${ipfs.client.max-requests:64}")
+    private int maxRequests;
+
+    @Value("${ipfs.client.max-requests-per-host:16}")
+    private int maxRequestsPerHost;
+
+    @Value("${ipfs.client.max-idle-connections:16}")
+    private int maxIdleConnections;
+
+    // Số lỗi liên tiếp để ngắt gateway và thời gian ngắt trước khi cho một request thử
+    @Value("${ipfs.client.circuit.failure-threshold:5}")
+    private int circuitFailureThreshold;
+
+    @Value("${ipfs.client.circuit.open-ms:30000}")
+    private long circuitOpenMs;
+
+    private OkHttpClient httpClient;
+    private List<String> gateways;
+    private final Map<String, GatewayCircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService hedgeScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ipfs-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public IpfsMetadataClient(ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        this.httpClient = new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(maxIdleConnections, 5, TimeUnit.MINUTES))
+            .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+            .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+            .callTimeout(totalTimeoutMs, TimeUnit.MILLISECONDS)
+            .build();
+
+        List<String> all = new ArrayList<>();
+        all.add(withSlash(primaryGateway));
+        fallbackGateways.stream()
+            .filter(g -> !g.isBlank())
+            .map(IpfsMetadataClient::withSlash)
+            .filter(g -> !all.contains(g))
+            .forEach(all::add);
+        this.gateways = List.copyOf(all);
+        for (String gateway : gateways) {
+            GatewayCircuitBreaker breaker = new GatewayCircuitBreaker(circuitFailureThreshold, circuitOpenMs);
+            breakers.put(gateway, breaker);
+            // 0 = CLOSED, 1 = OPEN, 2 = HALF_OPEN
+            Gauge.builder("ipfs.gateway.circuit.state", breaker, b -> b.getState().ordinal())
+                .description("IPFS gateway circuit breaker state")
+                .tag("gateway", gateway)
+                .register(meterRegistry);
+        }
+        log.info("IPFS metadata client: gateways {}, hedge delay {} ms", gateways, hedgeDelayMs);
+    }
+
+    // uri: ipfs://CID, CID thô hoặc URL gateway (.../ipfs/CID) -> hedged qua các gateway; URL http khác -> một request
+    public CompletableFuture<NFTMetadataDto> fetch(String uri) {
+        String contentKey = NFTMetadataService.contentKey(uri);
+        boolean ipfsContent = !contentKey.equals(uri) || !uri.startsWith("http");
+
+        List<Target> targets = ipfsContent
+            ? gateways.stream().map(gateway -> new Target(gateway + contentKey, gateway)).toList()
+            : List.of(new Target(uri, null));
+        return new HedgedFetch(targets).start()
+            .orTimeout(totalTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void record(String gateway, String outcome) {
+        if (gateway == null) return;
+        meterRegistry.counter("ipfs.gateway.requests", "gateway", gateway, "outcome", outcome).increment();
+    }
+
+    private static String withSlash(String gateway) {
+        return gateway.endsWith("/") ? gateway : gateway + "/";
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hedgeScheduler.shutdownNow();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    private record Target(String url, String gateway) {}
+
+    // Một lần fetch: gửi gateway đầu, sau hedgeDelay (hoặc ngay khi gateway trước lỗi) gửi gateway kế tiếp.
+    // Gateway đang OPEN bị bỏ qua; mọi gateway đều OPEN thì lỗi ngay, không tốn request nào.
+    private class HedgedFetch {
+        private final List<Target> targets;
+        private final CompletableFuture<NFTMetadataDto> result = new CompletableFuture<>();
+        private final List<Call> calls = new ArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        HedgedFetch(List<Target> targets) {
+            this.targets = targets;
+        }
+
+        CompletableFuture<NFTMetadataDto> start() {
+            launchNext();
+            // Xong (thành công, lỗi hoặc timeout) thì hủy các request còn chạy
+            result.whenComplete((metadata, error) -> {
+                synchronized (calls) {
+                    calls.forEach(Call::cancel);
+                }
+            });
+            return result;
+        }
+
+        private void launchNext() {
+            int index = next.getAndIncrement();
+            if (index >= targets.size() || result.isDone()) return;
+
+            Target target = targets.get(index);
+            GatewayCircuitBreaker breaker = target.gateway() != null ? breakers.get(target.gateway()) : null;
+            if (breaker != null && !breaker.tryAcquire()) {
+                record(target.gateway(), "rejected");
+                onError(new IOException("Circuit open for gateway " + target.gateway()));
+                return;
+            }
+
+            Call call = httpClient.newCall(new Request.Builder().url(target.url()).get().build());
+            synchronized (calls) {
+                calls.add(call);
+            }
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    if (call.isCanceled()) {
+                        // Hedge thua hoặc hết thời gian chung: không phải lỗi của gateway
+                        if (breaker != null) breaker.onIgnored();
+                        return;
+                    }
+                    gatewayFailed(target, breaker);
+                    onError(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (response) {
+                        // 5xx/429: gateway quá tải hoặc không tìm được nội dung kịp; 4xx khác là lỗi của URI
+                        if (response.code() >= 500 || response.code() == 429) {
+                            gatewayFailed(target, breaker);
+                            onError(new IOException("Unexpected response code: " + response));
+                            return;
+                        }
+                        if (breaker != null) breaker.onSuccess();
+                        record(target.gateway(), response.isSuccessful() ? "success" : "client_error");
+                        if (!response.isSuccessful()) {
+                            throw new IOException("Unexpected response code: " + response);
+                        }
+                        result.complete(objectMapper.readValue(response.body().string(), NFTMetadataDto.class));
+                    } catch (Exception e) {
+                        onError(e instanceof IOException io ? io : new IOException(e));
+                    }
+                }
+            });
+
+            if (index + 1 < targets.size()) {
+                hedgeScheduler.schedule(this::launchNext, hedgeDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void gatewayFailed(Target target, GatewayCircuitBreaker breaker) {
+            record(target.gateway(), "error");
+            if (breaker == null) return;
+            GatewayCircuitBreaker.State before = breaker.getState();
+            breaker.onFailure();
+            if (before != GatewayCircuitBreaker.State.OPEN && breaker.getState() == GatewayCircuitBreaker.State.OPEN) {
+                log.warn("IPFS gateway {} circuit opened for {} ms", target.gateway(), circuitOpenMs);
+            }
+        }
+
+        private void onError(IOException e) {
+            if (result.isDone()) return;
+            if (failed.incrementAndGet() >= targets.size()) {
+                result.completeExceptionally(e);
+            } else {
+                // Không chờ hết hedgeDelay khi gateway đã lỗi hoặc đang OPEN
+                launchNext();
+            }
+        }
+    }
+}
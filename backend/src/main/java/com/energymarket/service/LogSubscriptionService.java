@@ -0,0 +1,157 @@
+package com.energymarket.service;
+
+import io.reactivex.disposables.Disposable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthSubscribe;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.websocket.WebSocketService;
+import org.web3j.protocol.websocket.events.Notification;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+// eth_subscribe("logs") qua WebSocket: event được ghi ngay khi node đẩy về thay vì chờ vòng poll 5s.
+// Mất kết nối thì poller HTTP tự chạy lại với chu kỳ bình thường và lấp khoảng trống từ checkpoint.
+@Slf4j
+@Service
+public class LogSubscriptionService {
+    private final BlockchainEventListenerService listenerService;
+    private final EventLogDispatcher eventDispatcher;
+    private final Supplier<WebSocketService> webSocketServiceFactory;
+
+    @Value("${indexer.websocket.reconnect-delay-ms:5000}")
+    private long reconnectDelayMs;
+
+    @Value("${indexer.websocket.max-reconnect-delay-ms:60000}")
+    private long maxReconnectDelayMs;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean connected = new AtomicBoolean(false);
+    private volatile WebSocketService webSocketService;
+    private volatile Disposable subscription;
+    private volatile int failedAttempts;
+
+    public LogSubscriptionService(
+        BlockchainEventListenerService listenerService,
+        EventLogDispatcher eventDispatcher,
+        ObjectProvider<Supplier<WebSocketService>> webSocketServiceFactory
+    ) {
+        this.listenerService = listenerService;
+        this.eventDispatcher = eventDispatcher;
+        this.webSocketServiceFactory = webSocketServiceFactory.getIfAvailable();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (webSocketServiceFactory == null) {
+            log.info("WebSocket log subscription disabled, using HTTP polling only");
+            return;
+        }
+        scheduler.execute(this::connect);
+    }
+
+    private void connect() {
+        WebSocketService service = webSocketServiceFactory.get();
+        try {
+            service.connect(message -> {}, this::onDisconnect, () -> onDisconnect(null));
+            webSocketService = service;
+
+            // Lọc theo địa chỉ phía node; topic được lọc lại bởi dispatcher (danh sách topic của
+            // eth_subscribe hiểu theo vị trí, không phải OR). Không dùng Web3j.logsNotifications():
+            // LogNotification của web3j bỏ mất trường "removed"
+            Request<?, EthSubscribe> request = new Request<>("eth_subscribe",
+                List.of("logs", Map.of("address", eventDispatcher.getAddresses())), service, EthSubscribe.class);
+            subscription = service.subscribe(request, "eth_unsubscribe", PushedLogNotification.class)
+                .subscribe(this::onNotification, this::onDisconnect);
+
+            connected.set(true);
+            failedAttempts = 0;
+            listenerService.setPushActive(true);
+        } catch (Exception e) {
+            log.warn("WebSocket connection failed: {}", e.getMessage());
+            service.close();
+            scheduleReconnect();
+        }
+    }
+
+    private void onNotification(PushedLogNotification notification) {
+        try {
+            listenerService.onPushedLog(toLog(notification.getParams().getResult()));
+        } catch (Exception e) {
+            // Poller sẽ index lại block này, không cần ngắt subscription
+            log.error("Failed to apply pushed log: {}", e.getMessage());
+        }
+    }
+
+    private void onDisconnect(Throwable cause) {
+        if (!connected.compareAndSet(true, false)) return;
+
+        log.warn("WebSocket log subscription lost ({}), falling back to polling",
+            cause != null ? cause.getMessage() : "closed");
+        listenerService.setPushActive(false);
+        closeQuietly();
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (scheduler.isShutdown()) return;
+
+        long delay = Math.min(maxReconnectDelayMs, reconnectDelayMs << Math.min(failedAttempts++, 10));
+        scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeQuietly() {
+        if (subscription != null) subscription.dispose();
+        if (webSocketService != null) {
+            try {
+                webSocketService.close();
+            } catch (Exception ignored) {
+            }
+            webSocketService = null;
+        }
+    }
+
+    // Log của notification có kiểu riêng, chuyển về Log của eth_getLogs để dùng chung decoder
+    private static Log toLog(PushedLog pushed) {
+        return new Log(pushed.isRemoved(),
+            pushed.getLogIndex(),
+            pushed.getTransactionIndex(),
+            pushed.getTransactionHash(),
+            pushed.getBlockHash(),
+            pushed.getBlockNumber(),
+            pushed.getAddress(),
+            pushed.getData(),
+            null,
+            pushed.getTopics());
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        scheduler.shutdownNow();
+        connected.set(false);
+        closeQuietly();
+    }
+
+    // Như LogNotification của web3j nhưng giữ "removed": node gửi lại log với removed = true khi block chứa nó bị reorg
+    public static class PushedLogNotification extends Notification<PushedLog> {
+    }
+
+    public static class PushedLog extends org.web3j.protocol.websocket.events.Log {
+        private boolean removed;
+
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+}
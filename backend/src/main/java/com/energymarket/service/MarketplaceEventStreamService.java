@@ -0,0 +1,145 @@
+package com.energymarket.service;
+
+import com.energymarket.dto.MarketplaceEventDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Phát các thay đổi marketplace do indexer ghi nhận tới client qua SSE.
+// Mỗi client có buffer riêng và một virtual thread gửi: client chậm không làm chậm indexer hay client khác.
+@Slf4j
+@Service
+public class MarketplaceEventStreamService {
+    private static final MarketplaceEventDto HEARTBEAT = MarketplaceEventDto.builder().type("heartbeat").build();
+
+    @Value("${stream.client-buffer:256}")
+    private int clientBuffer;
+
+    @Value("${stream.max-clients:5000}")
+    private int maxClients;
+
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final Counter resyncCounter;
+
+    public MarketplaceEventStreamService(MeterRegistry meterRegistry) {
+        Gauge.builder("stream.clients", clients, Set::size)
+            .description("Connected SSE clients")
+            .register(meterRegistry);
+        this.resyncCounter = Counter.builder("stream.resync")
+            .description("Clients whose buffer overflowed and were asked to reload")
+            .register(meterRegistry);
+    }
+
+    public SseEmitter subscribe() {
+        if (clients.size() >= maxClients) {
+            throw new IllegalStateException("Too many stream clients");
+        }
+
+        // Timeout 0 = không tự đóng, kết nối sống tới khi client ngắt
+        SseEmitter emitter = new SseEmitter(0L);
+        Client client = new Client(emitter, new ArrayBlockingQueue<>(clientBuffer));
+        emitter.onCompletion(() -> remove(client));
+        emitter.onTimeout(() -> remove(client));
+        emitter.onError(e -> remove(client));
+
+        clients.add(client);
+        client.sender = senders.submit(() -> drain(client));
+        return emitter;
+    }
+
+    // Gọi từ indexer sau khi commit; không bao giờ block
+    public void publish(List<MarketplaceEventDto> events) {
+        if (events.isEmpty() || clients.isEmpty()) return;
+
+        for (Client client : clients) {
+            for (MarketplaceEventDto event : events) {
+                if (!client.offer(event)) {
+                    resyncCounter.increment();
+                    break;
+                }
+            }
+        }
+    }
+
+    // Giữ kết nối qua proxy/load balancer và phát hiện client đã ngắt
+    @Scheduled(fixedDelayString = "${stream.heartbeat-ms:15000}")
+    public void heartbeat() {
+        clients.forEach(client -> client.queue.offer(HEARTBEAT));
+    }
+
+    private void drain(Client client) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                MarketplaceEventDto event = client.queue.take();
+                if (event == HEARTBEAT) {
+                    client.emitter.send(SseEmitter.event().comment("ping"));
+                    continue;
+                }
+                client.lagging.set(false);
+                client.emitter.send(SseEmitter.event()
+                    .name(event.getType())
+                    .data(event, MediaType.APPLICATION_JSON));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // Client đã ngắt kết nối
+            log.debug("SSE client disconnected: {}", e.getMessage());
+            client.emitter.completeWithError(e);
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    private void remove(Client client) {
+        clients.remove(client);
+        if (client.sender != null) client.sender.cancel(true);
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        clients.forEach(client -> client.emitter.complete());
+        senders.shutdownNow();
+    }
+
+    private static final class Client {
+        final SseEmitter emitter;
+        final BlockingQueue<MarketplaceEventDto> queue;
+        final AtomicBoolean lagging = new AtomicBoolean(false);
+        volatile Future<?> sender;
+
+        Client(SseEmitter emitter, BlockingQueue<MarketplaceEventDto> queue) {
+            this.emitter = emitter;
+            this.queue = queue;
+        }
+
+        // Buffer đầy: bỏ hết thay đổi đang chờ, chỉ gửi một "resync" để client tải lại một lần
+        boolean offer(MarketplaceEventDto event) {
+            if (lagging.get()) return false;
+            if (queue.offer(event)) return true;
+
+            lagging.set(true);
+            queue.clear();
+            queue.offer(MarketplaceEventDto.builder().type(MarketplaceEventDto.RESYNC).build());
+            return false;
+        }
+    }
+}
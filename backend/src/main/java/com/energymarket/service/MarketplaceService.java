@@ -1,44 +1,78 @@
 package com.energymarket.service;
 
 import com.energymarket.contracts.EnergyMarketplace;
+import com.energymarket.service.ContractBatchCaller.ContractCall;
 
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Service;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Bool;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
 import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.protocol.core.DefaultBlockParameter;
 import lombok.extern.slf4j.Slf4j;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+// Đọc trực tiếp EnergyMarketplace.items() từ chain (đối soát với DB), không cache: API đọc trạng thái item từ bảng nfts
 @Slf4j
 @Service
 public class MarketplaceService {
     private final EnergyMarketplace marketplace;
+    private final ContractBatchCaller batchCaller;
 
-    public MarketplaceService(EnergyMarketplace marketplace) {
+    public MarketplaceService(EnergyMarketplace marketplace, ContractBatchCaller batchCaller) {
         this.marketplace = marketplace;
+        this.batchCaller = batchCaller;
     }
 
-    @Cacheable(value = "marketplaceItems", key = "#p0")
-    public MarketplaceItem fetchMarketplaceItem(BigInteger tokenId) throws Exception {
-        var item = marketplace.items(new Uint256(tokenId)).send();
-        
-        return new MarketplaceItem(
-            item.component4().toString(), // seller
-            item.component5().getValue(), // isActive
-            item.component2().getValue(), // price
-            item.component3().getValue()  // energyAmount
-        );
+    // Đọc tại block do caller chỉ định (block indexer đã xác nhận); token đọc lỗi không có trong kết quả
+    public Map<BigInteger, MarketplaceItem> readMarketplaceItems(Collection<BigInteger> tokenIds, BigInteger block) throws Exception {
+        if (tokenIds.isEmpty()) return Map.of();
+        return readItems(new ArrayList<>(tokenIds), block);
     }
 
-    @CacheEvict(value = "marketplaceItems", key = "#p0")
-    public void evictItem(BigInteger tokenId) {
-        log.info("Evicting cache for marketplace item #{}", tokenId);
+    // Đọc tất cả item tại cùng một block và gắn block đó vào kết quả
+    private Map<BigInteger, MarketplaceItem> readItems(List<BigInteger> tokenIds, BigInteger block) throws Exception {
+        List<ContractCall> calls = tokenIds.stream()
+            .map(tokenId -> new ContractCall(marketplace.getContractAddress(), itemsFunction(tokenId)))
+            .toList();
+        List<List<Type>> results = batchCaller.call(calls, DefaultBlockParameter.valueOf(block));
+
+        Map<BigInteger, MarketplaceItem> items = new LinkedHashMap<>();
+        for (int i = 0; i < tokenIds.size(); i++) {
+            List<Type> values = results.get(i);
+            if (values == null) continue;
+
+            items.put(tokenIds.get(i), new MarketplaceItem(
+                values.get(3).toString(),              // seller
+                ((Bool) values.get(4)).getValue(),     // isActive
+                ((Uint256) values.get(1)).getValue(),  // price
+                ((Uint256) values.get(2)).getValue(),  // energyAmount
+                block
+            ));
+        }
+        return items;
+    }
+
+    // Giống EnergyMarketplace.items(): (tokenId, price, energyAmount, seller, isActive)
+    private static Function itemsFunction(BigInteger tokenId) {
+        return new Function(EnergyMarketplace.FUNC_ITEMS,
+            List.<Type>of(new Uint256(tokenId)),
+            List.<TypeReference<?>>of(new TypeReference<Uint256>() {}, new TypeReference<Uint256>() {}, new TypeReference<Uint256>() {},
+                new TypeReference<Address>() {}, new TypeReference<Bool>() {}));
     }
 
     public record MarketplaceItem(
         String seller, 
         boolean isActive, 
         BigInteger price, 
-        BigInteger energyAmount
+        BigInteger energyAmount,
+        BigInteger blockNumber // Block tại đó item được đọc
     ) {}
-} 
\ No newline at end of file
+}
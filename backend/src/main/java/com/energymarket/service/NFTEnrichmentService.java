@@ -0,0 +1,177 @@
+package com.energymarket.service;
+
+import com.energymarket.dto.NFTAttributeDto;
+import com.energymarket.dto.NFTMetadataDto;
+import com.energymarket.model.NFT;
+import com.energymarket.repository.IndexedEventJdbcRepository;
+import com.energymarket.repository.NFTRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Đọc metadata IPFS cho NFT mới mint ngoài luồng indexer: mint được lưu ngay với energyType = "pending",
+// worker điền lại sau, gateway chậm không còn làm chậm việc index block
+@Slf4j
+@Service
+public class NFTEnrichmentService {
+    public static final String PENDING = "pending";
+    public static final String UNKNOWN = "Unknown";
+
+    private final NFTMetadataService nftMetadataService;
+    private final IndexedEventJdbcRepository eventJdbcRepository;
+    private final NFTRepository nftRepository;
+
+    @Value("${indexer.enrichment.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${indexer.enrichment.workers:2}")
+    private int workers;
+
+    @Value("${indexer.enrichment.max-attempts:6}")
+    private int maxAttempts;
+
+    // Backoff lũy thừa: initial, 2*initial, 4*initial... tối đa max
+    @Value("${indexer.enrichment.initial-backoff-ms:2000}")
+    private long initialBackoffMs;
+
+    @Value("${indexer.enrichment.max-backoff-ms:300000}")
+    private long maxBackoffMs;
+
+    private BlockingQueue<EnrichmentTask> queue;
+    private ExecutorService workerPool;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+    // Token đang nằm trong hàng đợi hoặc chờ retry, tránh đưa vào trùng
+    private final Set<BigInteger> inFlight = ConcurrentHashMap.newKeySet();
+    // Token cuối cùng sweep đã xét, lần sau quét tiếp từ đó và quay về đầu khi hết (chỉ thread scheduler dùng)
+    private BigInteger sweepCursor = BigInteger.ZERO;
+
+    public NFTEnrichmentService(
+        NFTMetadataService nftMetadataService,
+        IndexedEventJdbcRepository eventJdbcRepository,
+        NFTRepository nftRepository
+    ) {
+        this.nftMetadataService = nftMetadataService;
+        this.eventJdbcRepository = eventJdbcRepository;
+        this.nftRepository = nftRepository;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workerPool = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            workerPool.submit(this::runWorker);
+        }
+    }
+
+    // Không bao giờ block: hàng đợi đầy thì bỏ qua, token vẫn "pending" và sẽ được sweep nhặt lại
+    public void enqueue(BigInteger tokenId, String tokenURI) {
+        if (!inFlight.add(tokenId)) return;
+        if (!queue.offer(new EnrichmentTask(tokenId, tokenURI, 1))) {
+            inFlight.remove(tokenId);
+            log.debug("Enrichment queue full, token {} left pending", tokenId);
+        }
+    }
+
+    // Nhặt lại các token còn "pending" (hàng đợi từng đầy, app restart giữa chừng...).
+    // Quét theo cursor token_id: token đang chờ retry bị bỏ qua và không chặn các token pending phía sau
+    @Scheduled(fixedDelayString = "${indexer.enrichment.sweep-interval-ms:60000}", initialDelay = 10000)
+    public void sweepPending() {
+        int free = queue.remainingCapacity();
+        if (free == 0) return;
+
+        List<NFT> pending = nftRepository.findTop100ByEnergyTypeAndTokenIdGreaterThanOrderByTokenIdAsc(PENDING, sweepCursor);
+        for (NFT nft : pending) {
+            if (free == 0) return;
+            sweepCursor = nft.getTokenId();
+            if (inFlight.contains(nft.getTokenId())) continue;
+            enqueue(nft.getTokenId(), nft.getTokenURI());
+            free--;
+        }
+        // Đã tới token pending cuối cùng: lần sau quét lại từ đầu
+        if (pending.size() < 100) {
+            sweepCursor = BigInteger.ZERO;
+        }
+    }
+
+    private void runWorker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                process(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Enrichment worker error", e);
+            }
+        }
+    }
+
+    private void process(EnrichmentTask task) {
+        String energyType;
+        try {
+            energyType = resolveEnergyType(task.tokenURI());
+        } catch (Exception e) {
+            if (task.attempt() >= maxAttempts) {
+                log.warn("Giving up metadata for token {} after {} attempts: {}", task.tokenId(), task.attempt(), e.getMessage());
+                complete(task.tokenId(), UNKNOWN);
+            } else {
+                scheduleRetry(task);
+            }
+            return;
+        }
+        complete(task.tokenId(), energyType);
+    }
+
+    private void scheduleRetry(EnrichmentTask task) {
+        long delay = Math.min(maxBackoffMs, initialBackoffMs << Math.min(task.attempt() - 1, 20));
+        EnrichmentTask next = new EnrichmentTask(task.tokenId(), task.tokenURI(), task.attempt() + 1);
+        retryScheduler.schedule(() -> {
+            if (!queue.offer(next)) {
+                inFlight.remove(next.tokenId());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(BigInteger tokenId, String energyType) {
+        try {
+            eventJdbcRepository.updateEnergyType(tokenId, PENDING, energyType);
+        } finally {
+            inFlight.remove(tokenId);
+        }
+    }
+
+    // Lỗi gateway thì ném exception để retry; metadata đọc được nhưng thiếu thuộc tính thì là "Unknown"
+    private String resolveEnergyType(String rawTokenURI) throws Exception {
+        NFTMetadataDto metadata = nftMetadataService.loadMetadataOrThrow(nftMetadataService.toGatewayUrl(rawTokenURI));
+        if (metadata != null && metadata.getAttributes() != null) {
+            for (NFTAttributeDto attr : metadata.getAttributes()) {
+                if ("Energy Source".equalsIgnoreCase(attr.getTrait_type())) {
+                    return attr.getValue();
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        retryScheduler.shutdownNow();
+        workerPool.shutdownNow();
+    }
+
+    private record EnrichmentTask(BigInteger tokenId, String tokenURI, int attempt) {}
+}
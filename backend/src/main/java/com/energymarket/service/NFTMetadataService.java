@@ -1,59 +1,253 @@
 package com.energymarket.service;
 
+import com.energymarket.config.CacheConfig;
+import com.energymarket.dto.NFTAttributeDto;
 import com.energymarket.dto.NFTMetadataDto;
+import com.energymarket.model.NFTMetadataRecord;
+import com.energymarket.repository.NFTMetadataRecordRepository;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+// Metadata theo CID không đổi: cache (nftMetadataCache) -> bảng nft_metadata -> IPFS (IpfsMetadataClient).
+// Đọc IPFS thành công thì lưu vào bảng, mỗi tokenURI chỉ gọi gateway một lần.
 @Slf4j
 @Service
 public class NFTMetadataService {
-    private final OkHttpClient httpClient;
+    private static final TypeReference<List<NFTAttributeDto>> ATTRIBUTES_TYPE = new TypeReference<>() {};
+
+    private final IpfsMetadataClient ipfsClient;
     private final ObjectMapper objectMapper;
+    private final NFTMetadataRecordRepository metadataRepository;
+    private final CacheManager cacheManager;
+    private final Map<String, CompletableFuture<NFTMetadataDto>> inFlight = new ConcurrentHashMap<>();
+    private final Counter negativeHits;
+
+    @Value("${ipfs.gateway.url:https://gateway.pinata.cloud/ipfs/}")
+    private String ipfsGatewayUrl;
+
+    // Số bản ghi nạp sẵn vào cache khi khởi động
+    @Value("${metadata.store.warm-limit:1000}")
+    private int warmLimit;
+
+    // Backoff của negative cache cho URI lỗi
+    @Value("${metadata.negative-cache.initial-backoff-ms:30000}")
+    private long negativeInitialBackoffMs;
+
+    @Value("${metadata.negative-cache.max-backoff-ms:3600000}")
+    private long negativeMaxBackoffMs;
+
+    @Value("${metadata.negative-cache.max-size:10000}")
+    private long negativeMaxSize;
 
-    public NFTMetadataService(OkHttpClient httpClient, ObjectMapper objectMapper) {
-        this.httpClient = httpClient;
+    private com.github.benmanes.caffeine.cache.Cache<String, FailureEntry> failures;
+
+    public NFTMetadataService(IpfsMetadataClient ipfsClient, ObjectMapper objectMapper,
+                              NFTMetadataRecordRepository metadataRepository, CacheManager cacheManager,
+                              MeterRegistry meterRegistry) {
+        this.ipfsClient = ipfsClient;
         this.objectMapper = objectMapper;
+        this.metadataRepository = metadataRepository;
+        this.cacheManager = cacheManager;
+        this.negativeHits = Counter.builder("metadata.negative_cache.hits")
+            .description("Metadata lookups answered from the negative cache without calling IPFS")
+            .register(meterRegistry);
+        Gauge.builder("metadata.negative_cache.size", this, service -> service.failures != null ? service.failures.estimatedSize() : 0)
+            .description("Metadata URIs currently backed off after a failed fetch")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        // Giữ entry đủ lâu để số lần lỗi còn dùng được cho backoff lần sau
+        this.failures = Caffeine.newBuilder()
+            .maximumSize(negativeMaxSize)
+            .expireAfterWrite(Duration.ofMillis(negativeMaxBackoffMs * 2))
+            .build();
+    }
+
+    // tokenURI lưu trong DB là giá trị gốc từ event (ipfs://..., CID hoặc URL http)
+    public String toGatewayUrl(String rawTokenURI) {
+        if (rawTokenURI.startsWith("ipfs://")) {
+            return rawTokenURI.replace("ipfs://", ipfsGatewayUrl);
+        } else if (!rawTokenURI.startsWith("http")) {
+            return ipfsGatewayUrl + rawTokenURI;
+        }
+        return rawTokenURI;
     }
 
-    @Cacheable(value = "nftMetadataCache", key = "#p0")
+    // Khóa theo nội dung: "CID[/path]" cho ipfs://, CID thô hoặc URL gateway (.../ipfs/CID), URL khác giữ nguyên
+    public static String contentKey(String uri) {
+        if (uri.startsWith("ipfs://")) {
+            return uri.substring("ipfs://".length());
+        }
+        int ipfsPath = uri.indexOf("/ipfs/");
+        if (ipfsPath >= 0) {
+            return uri.substring(ipfsPath + "/ipfs/".length());
+        }
+        return uri;
+    }
+
+    // Không bao giờ ném lỗi: gateway lỗi thì trả metadata rỗng (không cache, không lưu, thử lại sau backoff)
     public NFTMetadataDto fetchMetadata(String uri) {
+        return fetchMetadataAsync(uri, Runnable::run).join();
+    }
+
+    // Bản bất đồng bộ cho NFTService fan-out cả trang: cache trả ngay, tra bảng chạy trên "executor",
+    // IPFS đọc qua IpfsMetadataClient không giữ thread nào trong lúc chờ gateway
+    public CompletableFuture<NFTMetadataDto> fetchMetadataAsync(String uri, Executor executor) {
+        String key = contentKey(uri);
+        Cache cache = cacheManager.getCache(CacheConfig.NFT_METADATA_CACHE);
+        NFTMetadataDto cached = cache != null ? cache.get(key, NFTMetadataDto.class) : null;
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        // URI vừa lỗi: trả metadata rỗng ngay, không gọi gateway cho tới hết thời gian backoff
+        FailureEntry failure = failures.getIfPresent(key);
+        if (failure != null && System.currentTimeMillis() < failure.retryAt()) {
+            negativeHits.increment();
+            return CompletableFuture.completedFuture(emptyMetadata());
+        }
+
+        // Nhiều request cùng lúc cho một CID dùng chung một lần tải
+        CompletableFuture<NFTMetadataDto> created = new CompletableFuture<>();
+        CompletableFuture<NFTMetadataDto> existing = inFlight.putIfAbsent(key, created);
+        CompletableFuture<NFTMetadataDto> future = existing != null ? existing : created;
+        if (existing == null) {
+            CompletableFuture.supplyAsync(() -> metadataRepository.findById(key).orElse(null), executor)
+                .thenCompose(stored -> stored != null
+                    ? CompletableFuture.completedFuture(toDto(stored))
+                    : ipfsClient.fetch(uri).thenApplyAsync(metadata -> store(key, metadata), executor))
+                .whenComplete((metadata, error) -> {
+                    if (error != null) {
+                        recordFailure(key, error);
+                    } else {
+                        failures.invalidate(key);
+                        if (cache != null) cache.put(key, metadata);
+                    }
+                    inFlight.remove(key, created);
+                    if (error != null) {
+                        created.completeExceptionally(error);
+                    } else {
+                        created.complete(metadata);
+                    }
+                });
+        }
+
+        return future.exceptionally(e -> emptyMetadata());
+    }
+
+    // Negative cache: lỗi lần n thì không thử lại trong initial * 2^(n-1) (tối đa max); log một dòng, không stack trace
+    private void recordFailure(String key, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        FailureEntry entry = failures.asMap().compute(key, (k, previous) -> {
+            int attempts = previous != null ? previous.attempts() + 1 : 1;
+            long backoff = Math.min(negativeInitialBackoffMs << Math.min(attempts - 1, 20), negativeMaxBackoffMs);
+            return new FailureEntry(attempts, System.currentTimeMillis() + backoff);
+        });
+        if (entry.attempts() == 1) {
+            log.warn("Failed to fetch metadata {}: {}", key, cause.getMessage());
+        } else {
+            log.debug("Failed to fetch metadata {} (attempt {}): {}", key, entry.attempts(), cause.getMessage());
+        }
+    }
+
+    private static NFTMetadataDto emptyMetadata() {
+        return NFTMetadataDto.builder()
+            .description("")
+            .image("")
+            .attributes(new ArrayList<>())
+            .build();
+    }
+
+    // Bảng nft_metadata trước, chưa có thì đọc IPFS và lưu lại; ném lỗi khi gateway lỗi để bên gọi tự retry
+    public NFTMetadataDto loadMetadataOrThrow(String uri) throws IOException {
+        String key = contentKey(uri);
+        NFTMetadataRecord stored = metadataRepository.findById(key).orElse(null);
+        if (stored != null) return toDto(stored);
+
+        NFTMetadataDto metadata = store(key, fetchMetadataOrThrow(uri));
+        failures.invalidate(key);
+        return metadata;
+    }
+
+    // Không cache, ném lỗi khi mọi gateway đều lỗi để bên gọi tự quyết định retry
+    public NFTMetadataDto fetchMetadataOrThrow(String uri) throws IOException {
         try {
-            Request request = new Request.Builder()
-                .url(uri)
-                .get()
-                .build();
-
-            try (Response response = httpClient.newCall(request).execute()) {
-                if (!response.isSuccessful()) {
-                    throw new IOException("Unexpected response code: " + response);
-                }
-
-                String responseBody = response.body().string();
-                return objectMapper.readValue(responseBody, NFTMetadataDto.class);
-            }
+            return ipfsClient.fetch(uri).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private NFTMetadataDto store(String key, NFTMetadataDto metadata) {
+        try {
+            metadataRepository.save(NFTMetadataRecord.builder()
+                .contentKey(key)
+                .description(metadata.getDescription())
+                .image(metadata.getImage())
+                .attributes(objectMapper.writeValueAsString(metadata.getAttributes()))
+                .fetchedAt(LocalDateTime.now())
+                .build());
         } catch (Exception e) {
-            log.error("Error fetching metadata from {}", uri, e);
-            return NFTMetadataDto.builder()
-                .description("")
-                .image("")
-                .attributes(new ArrayList<>())
-                .build();
+            // Lưu lỗi (vd. hai luồng cùng lưu một CID) không làm hỏng kết quả đã đọc
+            log.warn("Failed to store metadata for {}: {}", key, e.getMessage());
         }
+        return metadata;
     }
 
-    @CacheEvict(value = "nftMetadataCache", allEntries = true)
-    @Scheduled(fixedRateString = "${cache.evict.rate:3600000}")
-    public void evictMetadataCache() {
-        log.info("Evicting NFT metadata cache");
+    // Nạp sẵn metadata mới nhất từ bảng vào cache, trang danh sách đầu tiên sau khi khởi động không phải chờ IPFS
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmCache() {
+        Cache cache = cacheManager.getCache(CacheConfig.NFT_METADATA_CACHE);
+        if (cache == null || warmLimit <= 0) return;
+        try {
+            List<NFTMetadataRecord> records = metadataRepository.findAllByOrderByFetchedAtDesc(PageRequest.of(0, warmLimit));
+            records.forEach(record -> cache.put(record.getContentKey(), toDto(record)));
+            log.info("Warmed NFT metadata cache with {} entries", records.size());
+        } catch (Exception e) {
+            log.warn("Failed to warm NFT metadata cache: {}", e.getMessage());
+        }
+    }
+
+    private record FailureEntry(int attempts, long retryAt) {}
+
+    private NFTMetadataDto toDto(NFTMetadataRecord record) {
+        List<NFTAttributeDto> attributes;
+        try {
+            attributes = record.getAttributes() != null
+                ? objectMapper.readValue(record.getAttributes(), ATTRIBUTES_TYPE)
+                : new ArrayList<>();
+        } catch (Exception e) {
+            attributes = new ArrayList<>();
+        }
+        return NFTMetadataDto.builder()
+            .description(record.getDescription())
+            .image(record.getImage())
+            .attributes(attributes)
+            .build();
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+package com.energymarket.service;
+
+import com.energymarket.contracts.EnergyMarketplace;
+import com.energymarket.contracts.EnergyNFT;
+import com.energymarket.model.NFT;
+import com.energymarket.repository.IndexedEventJdbcRepository;
+import com.energymarket.repository.IndexedEventJdbcRepository.ListingRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.MintRecord;
+import com.energymarket.repository.NFTRepository;
+import com.energymarket.service.ContractBatchCaller.ContractCall;
+import com.energymarket.service.MarketplaceService.MarketplaceItem;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.Utf8String;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.protocol.core.DefaultBlockParameter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+
+// Đối soát bảng nfts với contract: bổ sung token indexer bỏ sót và sửa trạng thái niêm yết bị lệch.
+// Mỗi lần chỉ kiểm tra một nhóm nhỏ token (gộp trong JSON-RPC batch) nên số request không tăng theo kích thước marketplace.
+@Slf4j
+@Service
+public class NFTReconciliationService {
+    private static final int MAX_MISSING_PER_RUN = 50;
+
+    private final EnergyMarketplace marketplace;
+    private final EnergyNFT energyNFT;
+    private final NFTRepository nftRepository;
+    private final IndexedEventJdbcRepository eventJdbcRepository;
+    private final MarketplaceService marketplaceService;
+    private final NFTEnrichmentService enrichmentService;
+    private final ContractBatchCaller batchCaller;
+    private final BlockchainEventListenerService listenerService;
+
+    // Token cuối cùng đã kiểm tra ở lần trước, lần sau kiểm tra tiếp từ đó (quay vòng)
+    private BigInteger cursor = BigInteger.ZERO;
+
+    public NFTReconciliationService(
+        EnergyMarketplace marketplace,
+        EnergyNFT energyNFT,
+        NFTRepository nftRepository,
+        IndexedEventJdbcRepository eventJdbcRepository,
+        MarketplaceService marketplaceService,
+        NFTEnrichmentService enrichmentService,
+        ContractBatchCaller batchCaller,
+        BlockchainEventListenerService listenerService
+    ) {
+        this.marketplace = marketplace;
+        this.energyNFT = energyNFT;
+        this.nftRepository = nftRepository;
+        this.eventJdbcRepository = eventJdbcRepository;
+        this.marketplaceService = marketplaceService;
+        this.enrichmentService = enrichmentService;
+        this.batchCaller = batchCaller;
+        this.listenerService = listenerService;
+    }
+
+    @Scheduled(fixedDelayString = "${indexer.reconcile.interval-ms:300000}", initialDelay = 60000)
+    public void reconcile() {
+        try {
+            // Đọc chain tại block indexer đã xác nhận (không phải head): dòng ghi ra nằm trong cửa sổ
+            // confirmations như event đã index và bị rollback theo block này khi có reorg
+            BigInteger block = listenerService.getLastProcessedBlock();
+            BigInteger itemCount = readItemCount(block);
+            if (itemCount == null) {
+                log.warn("Reconciliation: itemCount() failed at block {}", block);
+                return;
+            }
+            insertMissing(itemCount, block);
+            checkListingDrift(block);
+        } catch (Exception e) {
+            log.error("NFT reconciliation failed: {}", e.getMessage());
+        }
+    }
+
+    private void insertMissing(BigInteger itemCount, BigInteger block) throws Exception {
+        List<BigInteger> missing = eventJdbcRepository.findMissingTokenIds(itemCount, MAX_MISSING_PER_RUN);
+        if (missing.isEmpty()) return;
+
+        log.warn("Reconciliation: {} token(s) missing from DB, loading from chain (first #{})", missing.size(), missing.get(0));
+        Map<BigInteger, MarketplaceItem> items = marketplaceService.readMarketplaceItems(missing, block);
+
+        // tokenURI + ownerOf của cả nhóm trong một JSON-RPC batch
+        List<ContractCall> calls = new ArrayList<>();
+        for (BigInteger tokenId : missing) {
+            calls.add(new ContractCall(energyNFT.getContractAddress(), singleOutput(EnergyNFT.FUNC_TOKENURI, tokenId, new TypeReference<Utf8String>() {})));
+            calls.add(new ContractCall(energyNFT.getContractAddress(), singleOutput(EnergyNFT.FUNC_OWNEROF, tokenId, new TypeReference<Address>() {})));
+        }
+        List<List<Type>> results = batchCaller.call(calls, DefaultBlockParameter.valueOf(block));
+
+        for (int i = 0; i < missing.size(); i++) {
+            BigInteger tokenId = missing.get(i);
+            MarketplaceItem item = items.get(tokenId);
+            List<Type> tokenURI = results.get(2 * i);
+            List<Type> ownerOf = results.get(2 * i + 1);
+            if (item == null || tokenURI == null || ownerOf == null) continue;
+
+            // Đang niêm yết thì owner trong DB là người bán, đã bán thì là chủ hiện tại
+            String owner = item.isActive() ? item.seller() : ownerOf.get(0).toString();
+            String uri = ((Utf8String) tokenURI.get(0)).getValue();
+
+            MintRecord mint = new MintRecord(
+                tokenId,
+                owner.toLowerCase(Locale.ROOT),
+                item.seller().toLowerCase(Locale.ROOT),
+                uri,
+                item.energyAmount(),
+                item.price(),
+                NFTEnrichmentService.PENDING,
+                block // Không rõ block mint: dùng block đã đọc, reorg về trước block này thì dòng bị xóa và đối soát lại
+            );
+            if (!eventJdbcRepository.insertMints(List.of(mint), Map.of()).isEmpty()) {
+                if (!item.isActive()) {
+                    eventJdbcRepository.updateListings(List.of(new ListingRecord(tokenId, false, null, block)));
+                }
+                enrichmentService.enqueue(tokenId, uri);
+            }
+        }
+    }
+
+    private void checkListingDrift(BigInteger block) throws Exception {
+        List<NFT> window = nftRepository.findTop50ByTokenIdGreaterThanOrderByTokenIdAsc(cursor);
+        if (window.isEmpty()) {
+            cursor = BigInteger.ZERO;
+            return;
+        }
+
+        // Cả cửa sổ 50 token trong một JSON-RPC batch, đọc thẳng từ chain (không dùng cache)
+        Map<BigInteger, MarketplaceItem> items = marketplaceService.readMarketplaceItems(
+            window.stream().map(NFT::getTokenId).toList(), block);
+
+        for (NFT nft : window) {
+            MarketplaceItem item = items.get(nft.getTokenId());
+            // Token đã có event mới hơn block đọc (log đẩy qua WebSocket): trạng thái trong DB mới hơn chain đã đọc
+            if (item == null || (nft.getLastEventBlock() != null && nft.getLastEventBlock().compareTo(block) > 0)) continue;
+
+            String seller = item.seller().toLowerCase(Locale.ROOT);
+            if (!seller.equals(nft.getSeller())) {
+                eventJdbcRepository.updateSeller(nft.getTokenId(), seller);
+            }
+
+            boolean active = item.isActive();
+            BigInteger price = item.price();
+            if (nft.isListed() != active || (active && !price.equals(nft.getPrice()))) {
+                log.warn("Reconciliation: token #{} drifted (listed {} -> {}, price {} -> {})",
+                    nft.getTokenId(), nft.isListed(), active, nft.getPrice(), price);
+                eventJdbcRepository.updateListings(List.of(new ListingRecord(nft.getTokenId(), active, active ? price : null, item.blockNumber())));
+            }
+        }
+        cursor = window.get(window.size() - 1).getTokenId();
+    }
+
+    // Cùng block với tokenURI/ownerOf/items: token mint sau block này chưa bị coi là "missing"
+    private BigInteger readItemCount(BigInteger block) throws Exception {
+        Function itemCount = new Function(EnergyMarketplace.FUNC_ITEMCOUNT, List.of(), List.<TypeReference<?>>of(new TypeReference<Uint256>() {}));
+        List<Type> result = batchCaller.call(List.of(new ContractCall(marketplace.getContractAddress(), itemCount)),
+            DefaultBlockParameter.valueOf(block)).get(0);
+        return result == null ? null : ((Uint256) result.get(0)).getValue();
+    }
+
+    private static Function singleOutput(String name, BigInteger tokenId, TypeReference<?> output) {
+        return new Function(name, List.<Type>of(new Uint256(tokenId)), List.<TypeReference<?>>of(output));
+    }
+}
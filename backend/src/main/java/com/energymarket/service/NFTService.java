@@ -1,30 +1,34 @@
 package com.energymarket.service;
 
-import org.springframework.stereotype.Service;
 import org.springframework.beans.factory.annotation.Value;
-import org.web3j.abi.datatypes.generated.Uint256;
-import org.web3j.crypto.Credentials;
-import org.web3j.protocol.Web3j;
-import org.web3j.tx.gas.DefaultGasProvider;
+import org.springframework.stereotype.Service;
 import org.web3j.utils.Convert;
 
 import java.math.BigInteger;
 import java.math.BigDecimal;
-import java.util.ArrayList;
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.Semaphore;
 
 import lombok.extern.slf4j.Slf4j;
-import okhttp3.OkHttpClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.energymarket.config.CacheConfig;
+import com.energymarket.config.CachePolicyProperties;
+import com.energymarket.dto.NFTCursorPageDto;
 import com.energymarket.dto.NFTDto;
 import com.energymarket.dto.NFTMetadataDto;
-import com.energymarket.service.MarketplaceService.MarketplaceItem;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.energymarket.model.NFT;
+import com.energymarket.repository.NFTRepository;
 
 // IMPORT MỚI
 import com.energymarket.repository.TransactionHistoryRepository;
@@ -32,212 +36,245 @@ import com.energymarket.repository.TransactionHistoryRepository;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
-import com.energymarket.contracts.EnergyMarketplace;
-import com.energymarket.contracts.EnergyNFT;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
 
+// Danh sách NFT đọc từ bảng nfts do indexer duy trì (phân trang + đếm bằng SQL),
+// chain chỉ còn dùng để đối soát (NFTReconciliationService)
 @Slf4j
 @Service
 public class NFTService {
-    private final Web3j web3j;
-    private final Credentials credentials;
-    private final OkHttpClient httpClient;
-    private final ObjectMapper objectMapper;
-    private final ExecutorService executorService;
-    private final EnergyMarketplace marketplace;
-    private EnergyNFT nft;
-    private final ConcurrentHashMap<String, BigInteger> itemCountCache = new ConcurrentHashMap<>();
-    private static final List<NFTDto> DEFAULT_NFT_SUBLIST = new ArrayList<>();
+    private static final int MAX_CURSOR_LIMIT = 100;
+
+    private ExecutorService executorService;
     private final NFTMetadataService nftMetadataService;
-    private final MarketplaceService marketplaceService;
-    
+    private final NFTRepository nftRepository;
+
     // --- QUAN TRỌNG: Khai báo Repository ---
     private final TransactionHistoryRepository transactionHistoryRepository;
-    
-    @Value("${contract.marketplace.address}")
-    private String marketplaceAddress;
-    
-    @Value("${contract.nft.address}")
-    private String nftAddress;
-    
-    @Value("${ipfs.gateway.url}")
-    private String ipfsGateway;
-    
+
+    private final CachePolicyProperties cachePolicies;
+    private final MeterRegistry meterRegistry;
+
+    // Fan-out mỗi trang: virtual thread (mặc định) hoặc pool cố định pool-size thread
+    @Value("${listing.fanout.virtual-threads:true}")
+    private boolean fanoutVirtualThreads;
+
+    @Value("${listing.fanout.pool-size:16}")
+    private int fanoutPoolSize;
+
+    // Số việc chạy cùng lúc tối đa cho một request, một trang lớn không chiếm hết DB/executor của request khác
+    @Value("${listing.fanout.max-concurrency-per-request:8}")
+    private int maxConcurrencyPerRequest;
+
+    private LoadingCache<CountKey, Long> approximateCounts;
+
     public NFTService(
-        Web3j web3j, 
-        Credentials credentials, 
-        OkHttpClient httpClient,
-        ObjectMapper objectMapper,
         NFTMetadataService nftMetadataService,
-        MarketplaceService marketplaceService,
-        EnergyMarketplace marketplace,
+        NFTRepository nftRepository,
         // --- QUAN TRỌNG: Inject vào Constructor ---
-        TransactionHistoryRepository transactionHistoryRepository
+        TransactionHistoryRepository transactionHistoryRepository,
+        CachePolicyProperties cachePolicies,
+        MeterRegistry meterRegistry
     ) {
-        this.web3j = web3j;
-        this.credentials = credentials;
-        this.httpClient = httpClient;
-        this.objectMapper = objectMapper;
         this.nftMetadataService = nftMetadataService;
-        this.executorService = Executors.newFixedThreadPool(3);
-        this.marketplaceService = marketplaceService;
-        this.marketplace = marketplace;
+        this.nftRepository = nftRepository;
         this.transactionHistoryRepository = transactionHistoryRepository; // Gán giá trị
+        this.cachePolicies = cachePolicies;
+        this.meterRegistry = meterRegistry;
     }
-    
+
     @PostConstruct
     private void init() {
-        this.nft = EnergyNFT.load(
-            nftAddress, web3j, credentials, new DefaultGasProvider()
-        );
+        // Metric executor.* (tag name=nft.fanout): số task, thời gian chạy và chờ
+        ExecutorService executor = fanoutVirtualThreads
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(fanoutPoolSize);
+        this.executorService = ExecutorServiceMetrics.monitor(meterRegistry, executor, "nft.fanout");
+
+        // Tổng số bản ghi gần đúng: hết hạn thì vẫn trả giá trị cũ và đếm lại ở nền (cache.specs.listingCounts)
+        CachePolicyProperties.Spec spec = cachePolicies.spec(CacheConfig.LISTING_COUNTS_CACHE);
+        Caffeine<Object, Object> builder = spec != null
+            ? spec.toBuilder(null, true)
+            : Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .refreshAfterWrite(Duration.ofSeconds(30))
+                .expireAfterAccess(Duration.ofMinutes(10));
+        this.approximateCounts = builder.build(key -> countNFTs(key.section(), key.owner()));
     }
-    
-    public Page<NFTDto> getNFTs(String section, String account, Pageable pageable) {
-        log.info("Fetching NFTs for section: {}, account: {}", section, account);
+
+    public Page<NFTDto> getNFTs(String section, String account, Pageable pageable, CountMode countMode) {
+        log.info("Fetching NFTs for section: {}, account: {}, count: {}", section, account, countMode);
         try {
-            Uint256 currentItemCount = marketplace.itemCount().send();
-            itemCountCache.put("itemCount", currentItemCount.getValue());
-            
-            Page<NFTDto> nfts = fetchAndProcessNFTs(section, account, pageable, currentItemCount.getValue());
-            return nfts;
+            if (countMode == CountMode.EXACT) {
+                Page<NFT> nfts = findNFTs(section, account, pageable);
+                return new PageImpl<>(toDtos(nfts.getContent()), pageable, nfts.getTotalElements());
+            }
+
+            // Một truy vấn lấy trang (không COUNT); tổng lấy từ cache hoặc suy ra từ hasNext
+            Slice<NFT> slice = findSlice(section, account, pageable);
+            long seen = pageable.getOffset() + slice.getNumberOfElements();
+            long total;
+            if (!slice.hasNext()) {
+                total = seen; // Trang cuối: tổng chính xác
+            } else if (countMode == CountMode.APPROXIMATE) {
+                total = Math.max(seen + 1, approximateCounts.get(new CountKey(section, normalize(account))));
+            } else {
+                total = seen + 1;
+            }
+            return new PageImpl<>(toDtos(slice.getContent()), pageable, total);
         } catch (Exception e) {
             log.error("Error fetching NFTs", e);
             throw new RuntimeException("Failed to fetch NFTs", e);
         }
     }
-    
-    private Page<NFTDto> fetchAndProcessNFTs(
-        String section,
-        String account,
-        Pageable pageable,
-        BigInteger totalItems
-    ) throws Exception {
-        if (totalItems.equals(BigInteger.ZERO)) {
-            return new PageImpl<>(DEFAULT_NFT_SUBLIST, pageable, 0);
+
+    // Keyset pagination: chi phí mỗi trang như nhau bất kể trang sâu tới đâu
+    public NFTCursorPageDto getNFTsAfter(String section, String account, BigInteger after, int limit) {
+        int size = Math.max(1, Math.min(limit, MAX_CURSOR_LIMIT));
+        BigInteger cursor = after != null ? after : BigInteger.ZERO;
+        log.info("Fetching NFTs for section: {}, account: {}, after: {}, limit: {}", section, account, cursor, size);
+
+        // Lấy dư một bản ghi để biết còn trang sau hay không
+        List<NFT> nfts = findNFTsAfter(section, normalize(account), cursor, Limit.of(size + 1));
+        boolean hasNext = nfts.size() > size;
+        List<NFT> items = hasNext ? nfts.subList(0, size) : nfts;
+
+        return NFTCursorPageDto.builder()
+            .items(toDtos(items))
+            .nextCursor(hasNext ? items.get(items.size() - 1).getTokenId().toString() : null)
+            .hasNext(hasNext)
+            .build();
+    }
+
+    private List<NFT> findNFTsAfter(String section, String owner, BigInteger after, Limit limit) {
+        if ("home".equals(section)) {
+            return owner == null
+                ? nftRepository.findByIsListedTrueAndTokenIdGreaterThanOrderByTokenIdAsc(after, limit)
+                : nftRepository.findByIsListedTrueAndOwnerNotAndTokenIdGreaterThanOrderByTokenIdAsc(owner, after, limit);
+        } else if ("listing".equals(section) && owner != null) {
+            return nftRepository.findByIsListedTrueAndOwnerAndTokenIdGreaterThanOrderByTokenIdAsc(owner, after, limit);
+        } else if ("purchased".equals(section) && owner != null) {
+            return nftRepository.findByIsListedFalseAndOwnerAndSellerNotAndTokenIdGreaterThanOrderByTokenIdAsc(owner, owner, after, limit);
         }
+        return List.of();
+    }
+
+    // Owner trong DB là địa chỉ chữ thường (giá trị từ event)
+    private static String normalize(String account) {
+        return (account == null || account.isEmpty()) ? null : account.toLowerCase(Locale.ROOT);
+    }
+
+    // Offset pagination, giữ lại cho client cũ (trang sâu chậm dần do OFFSET)
+    private Page<NFT> findNFTs(String section, String account, Pageable pageable) {
+        String owner = normalize(account);
+        Pageable page = sortedByTokenId(pageable);
 
-        AtomicInteger totalValidNfts = new AtomicInteger(0);
-        List<CompletableFuture<NFTDto>> futures = new ArrayList<>();
-        List<NFTDto> pageItems = new ArrayList<>();
-
-        // Count total valid NFTs using parallel processing
-        int batchSize = 20;
-        List<CompletableFuture<Integer>> countFutures = new ArrayList<>();
-        
-        for (int i = 1; i <= totalItems.intValue(); i += batchSize) {
-            final int start = i;
-            final int end = Math.min(i + batchSize - 1, totalItems.intValue());
-            
-            CompletableFuture<Integer> batchCount = CompletableFuture.supplyAsync(() -> {
-                int count = 0;
-                for (int j = start; j <= end; j++) {
-                    try {
-                        BigInteger tokenId = BigInteger.valueOf(j);
-                        MarketplaceItem item = marketplaceService.fetchMarketplaceItem(tokenId);
-                        
-                        if (shouldIncludeNFT(section, account, item.seller(), item.isActive(), tokenId)) {
-                            count++;
-                        }
-                    } catch (Exception e) {
-                        log.error("Error processing token #{}", j, e);
-                    }
-                }
-                return count;
-            }, executorService);
-            
-            countFutures.add(batchCount);
+        if ("home".equals(section)) {
+            return owner == null
+                ? nftRepository.findByIsListedTrue(page)
+                : nftRepository.findByIsListedTrueAndOwnerNot(owner, page);
+        } else if ("listing".equals(section) && owner != null) {
+            return nftRepository.findByIsListedTrueAndOwner(owner, page);
+        } else if ("purchased".equals(section) && owner != null) {
+            return nftRepository.findByIsListedFalseAndOwnerAndSellerNot(owner, owner, page);
         }
-        
-        BigInteger currentId = BigInteger.ONE;
-        int start = pageable.getPageNumber() * pageable.getPageSize();
-        int currentCount = 0;
-        int collectedItems = 0;
-
-        // Collect only the items for the requested page
-        log.info("Start second pass");
-        while (currentId.compareTo(totalItems) <= 0 && collectedItems < pageable.getPageSize()) {
-            BigInteger tokenId = currentId;
-
-            MarketplaceItem item = marketplaceService.fetchMarketplaceItem(tokenId);
-            
-            if (shouldIncludeNFT(section, account, item.seller(), item.isActive(), tokenId)) {
-                if (currentCount >= start) {
-                    CompletableFuture<NFTDto> future = CompletableFuture.supplyAsync(() -> {
-                        try {
-                            String uri = nft.tokenURI(new Uint256(tokenId)).send().getValue();
-                            NFTMetadataDto metadata = nftMetadataService.fetchMetadata(uri);
-                            
-                            // --- QUAN TRỌNG: Lấy số lượng đã bán từ DB ---
-                            long tradeCount = transactionHistoryRepository.countByTokenId(tokenId);
-                            
-                            return NFTDto.builder()
-                                .id(tokenId.longValue())
-                                .title("Energy NFT #" + tokenId)
-                                .price(formatEther(item.price()) + " ETH")
-                                .energyAmount(item.energyAmount().intValue())
-                                .seller(item.seller())
-                                .image(metadata.getImage())
-                                .description(metadata.getDescription())
-                                .attributes(metadata.getAttributes())
-                                .isActive(item.isActive())
-                                // --- Set giá trị vào DTO ---
-                                .totalTrades(tradeCount)
-                                .build();
-                        } catch (Exception e) {
-                            log.error("Error processing NFT #{}", tokenId, e);
-                            return null;
-                        }
-                    }, executorService);
-                    
-                    futures.add(future);
-                    collectedItems++;
-                }
-                currentCount++;
-            }
-            currentId = currentId.add(BigInteger.ONE);
+        return Page.empty(pageable);
+    }
+
+    private Slice<NFT> findSlice(String section, String account, Pageable pageable) {
+        String owner = normalize(account);
+        Pageable page = sortedByTokenId(pageable);
+
+        if ("home".equals(section)) {
+            return owner == null
+                ? nftRepository.findSliceByIsListedTrue(page)
+                : nftRepository.findSliceByIsListedTrueAndOwnerNot(owner, page);
+        } else if ("listing".equals(section) && owner != null) {
+            return nftRepository.findSliceByIsListedTrueAndOwner(owner, page);
+        } else if ("purchased".equals(section) && owner != null) {
+            return nftRepository.findSliceByIsListedFalseAndOwnerAndSellerNot(owner, owner, page);
         }
+        return new SliceImpl<>(List.of(), pageable, false);
+    }
 
-        // Wait for all counting tasks to complete and sum the results
-        int totalValidNftsCount = countFutures.stream()
-            .map(CompletableFuture::join)
-            .mapToInt(Integer::intValue)
-            .sum();
-        totalValidNfts.set(totalValidNftsCount);
+    private long countNFTs(String section, String owner) {
+        if ("home".equals(section)) {
+            return owner == null
+                ? nftRepository.countByIsListedTrue()
+                : nftRepository.countByIsListedTrueAndOwnerNot(owner);
+        } else if ("listing".equals(section) && owner != null) {
+            return nftRepository.countByIsListedTrueAndOwner(owner);
+        } else if ("purchased".equals(section) && owner != null) {
+            return nftRepository.countByIsListedFalseAndOwnerAndSellerNot(owner, owner);
+        }
+        return 0;
+    }
+
+    private static Pageable sortedByTokenId(Pageable pageable) {
+        return PageRequest.of(pageable.getPageNumber(), pageable.getPageSize(),
+            pageable.getSortOr(Sort.by("tokenId")));
+    }
 
-        pageItems = futures.stream()
+    private List<NFTDto> toDtos(List<NFT> nfts) {
+        if (nfts.isEmpty()) return List.of();
+
+        // --- QUAN TRỌNG: Lấy số lượng đã bán của cả trang từ DB trong một truy vấn ---
+        Map<BigInteger, Long> tradeCounts = new HashMap<>();
+        List<BigInteger> tokenIds = nfts.stream().map(NFT::getTokenId).toList();
+        for (Object[] row : transactionHistoryRepository.getTradeCounts(tokenIds)) {
+            tradeCounts.put(((BigDecimal) row[0]).toBigInteger(), ((Number) row[1]).longValue());
+        }
+
+        // Metadata của cả trang đọc song song: cache/DB trên executorService, IPFS bất đồng bộ (không giữ thread).
+        // Thời gian cả trang ~ lượt đọc chậm nhất thay vì tổng các lượt
+        Executor requestExecutor = boundedExecutor(maxConcurrencyPerRequest);
+        List<CompletableFuture<NFTDto>> futures = nfts.stream()
+            .map(nft -> nftMetadataService.fetchMetadataAsync(nftMetadataService.toGatewayUrl(nft.getTokenURI()), requestExecutor)
+                .thenApply(metadata -> toDto(nft, tradeCounts.getOrDefault(nft.getTokenId(), 0L), metadata)))
+            .toList();
+
+        return futures.stream()
             .map(CompletableFuture::join)
-            .filter(dto -> dto != null)
-            .collect(Collectors.toList());
-
-        return new PageImpl<>(pageItems, pageable, totalValidNfts.get());
-    }
-    
-    private boolean shouldIncludeNFT(
-        String section, 
-        String account, 
-        String seller, 
-        boolean isActive,
-        BigInteger tokenId
-    ) {
-        try {
-            if ("home".equals(section)) {
-                return isActive && (account == null || account.isEmpty() || !seller.equalsIgnoreCase(account));
-            } else if ("listing".equals(section)) {
-                return isActive && seller.equalsIgnoreCase(account);
-            } else if ("purchased".equals(section)) {
-                if (!isActive && !seller.equalsIgnoreCase(account)) {
-                    String currentOwner = nft.ownerOf(new Uint256(tokenId)).send().toString();
-                    return currentOwner.equalsIgnoreCase(account);
-                }
+            .toList();
+    }
+
+    // Giới hạn số task đồng thời của một request trên executor dùng chung (chờ semaphore rẻ trên virtual thread)
+    private Executor boundedExecutor(int maxConcurrency) {
+        Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+        return task -> executorService.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                permits.release();
             }
-        } catch (Exception e) {
-            log.error("Error checking NFT inclusion for #{}", tokenId, e);
-        }
-        return false;
+        });
     }
-    
+
+    private NFTDto toDto(NFT nft, long totalTrades, NFTMetadataDto metadata) {
+        return NFTDto.builder()
+            .id(nft.getTokenId().longValue())
+            .title("Energy NFT #" + nft.getTokenId())
+            .price(formatEther(nft.getPrice()) + " ETH")
+            .energyAmount(nft.getEnergyAmount().intValue())
+            // Người mint/niêm yết, giống items(tokenId).seller trên contract và bộ lọc "purchased"
+            .seller(nft.getSeller())
+            .image(metadata.getImage())
+            .description(metadata.getDescription())
+            .attributes(metadata.getAttributes())
+            .isActive(nft.isListed())
+            // --- Set giá trị vào DTO ---
+            .totalTrades(totalTrades)
+            .build();
+    }
+
     private String formatEther(BigInteger wei) {
         return Convert.fromWei(new BigDecimal(wei), Convert.Unit.ETHER).toString();
     }
@@ -246,4 +283,20 @@ public class NFTService {
     public void cleanup() {
         executorService.shutdown();
     }
-}
\ No newline at end of file
+
+
+    private record CountKey(String section, String owner) {}
+
+    // EXACT: COUNT mỗi request; APPROXIMATE: COUNT được cache và làm mới ở nền; NONE: chỉ suy ra từ hasNext
+    public enum CountMode {
+        EXACT, APPROXIMATE, NONE;
+
+        public static CountMode from(String value) {
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (Exception e) {
+                return EXACT;
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.energymarket.config;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Node giả là một interceptor của OkHttp: ghi lại payload đã gửi và trả lời từng request trong batch
+class BatchingHttpServiceTest {
+    private static final long WINDOW_MICROS = 200_000;
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<JsonNode> sentPayloads = new CopyOnWriteArrayList<>();
+    private final ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Trả về null: node bỏ sót request đó trong batch
+    private Function<JsonNode, JsonNode> responder = this::result;
+    private int httpStatus = 200;
+
+    private BatchingHttpService service;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        callers.shutdownNow();
+        if (service != null) service.close();
+    }
+
+    @Test
+    void coalescesConcurrentRequestsIntoOneBatch() throws Exception {
+        service = service(50, false);
+
+        List<JsonNode> responses = sendConcurrently(
+            request(1, "eth_call", "0x01"), request(2, "eth_call", "0x02"), request(3, "eth_call", "0x03"));
+
+        assertEquals(1, sentPayloads.size());
+        assertEquals(3, sentPayloads.get(0).size());
+        // Node trả batch theo thứ tự ngược: mỗi caller vẫn nhận đúng kết quả theo id
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, responses.get(i).path("id").asInt());
+            assertEquals("result-0x0" + (i + 1), responses.get(i).path("result").asText());
+        }
+    }
+
+    @Test
+    void flushesAsSoonAsBatchIsFull() throws Exception {
+        service = service(2, false);
+
+        sendConcurrently(request(1, "eth_call", "0x01"), request(2, "eth_call", "0x02"), request(3, "eth_call", "0x03"));
+
+        assertEquals(2, sentPayloads.size());
+        assertEquals(3, sentPayloads.stream().mapToInt(payload -> payload.isArray() ? payload.size() : 1).sum());
+    }
+
+    @Test
+    void identicalRequestsInFlightShareOneCall() throws Exception {
+        service = service(50, true);
+
+        List<JsonNode> responses = sendConcurrently(
+            request(1, "eth_call", "0x01"), request(2, "eth_call", "0x01"), request(3, "eth_call", "0x02"));
+
+        // Request thứ hai không được gửi: chỉ còn hai request trong batch
+        assertEquals(1, sentPayloads.size());
+        assertEquals(2, sentPayloads.get(0).size());
+        assertEquals(1, responses.get(0).path("id").asInt());
+        assertEquals(2, responses.get(1).path("id").asInt());
+        assertEquals("result-0x01", responses.get(1).path("result").asText());
+        assertEquals("result-0x02", responses.get(2).path("result").asText());
+    }
+
+    @Test
+    void methodsOutsideTheListAreSentDirectly() throws Exception {
+        service = service(50, true);
+
+        JsonNode response = read(service.performIO(request(7, "eth_chainId", "0x01")));
+
+        assertEquals(1, sentPayloads.size());
+        assertTrue(sentPayloads.get(0).isObject());
+        assertEquals(7, response.path("id").asInt());
+    }
+
+    @Test
+    void errorsAreMappedToTheirOwnRequest() throws Exception {
+        service = service(50, false);
+        responder = request -> switch (request.path("params").get(0).asText()) {
+            case "0x02" -> error(request, 3, "execution reverted");
+            case "0x03" -> null;
+            default -> result(request);
+        };
+
+        List<Future<JsonNode>> futures = submit(
+            request(1, "eth_call", "0x01"), request(2, "eth_call", "0x02"), request(3, "eth_call", "0x03"));
+
+        assertEquals("result-0x01", futures.get(0).get().path("result").asText());
+        // Lỗi JSON-RPC của một request chỉ thuộc về request đó
+        assertEquals(3, futures.get(1).get().path("error").path("code").asInt());
+        ExecutionException missing = assertThrows(ExecutionException.class, () -> futures.get(2).get());
+        assertInstanceOf(IOException.class, missing.getCause());
+    }
+
+    @Test
+    void failedBatchFailsEveryRequest() throws Exception {
+        service = service(50, false);
+        httpStatus = 502;
+
+        List<Future<JsonNode>> futures = submit(request(1, "eth_call", "0x01"), request(2, "eth_call", "0x02"));
+
+        for (Future<JsonNode> future : futures) {
+            ExecutionException failure = assertThrows(ExecutionException.class, future::get);
+            assertInstanceOf(IOException.class, failure.getCause());
+        }
+    }
+
+    private List<JsonNode> sendConcurrently(String... payloads) throws Exception {
+        List<JsonNode> responses = new ArrayList<>();
+        for (Future<JsonNode> future : submit(payloads)) {
+            responses.add(future.get());
+        }
+        return responses;
+    }
+
+    // Mọi request được gửi trong cùng một cửa sổ gộp
+    private List<Future<JsonNode>> submit(String... payloads) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<JsonNode>> futures = new ArrayList<>();
+        for (String payload : payloads) {
+            futures.add(callers.submit(() -> {
+                start.await();
+                return read(service.performIO(payload));
+            }));
+        }
+        start.countDown();
+        return futures;
+    }
+
+    private BatchingHttpService service(int maxBatchSize, boolean singleFlight) {
+        OkHttpClient client = new OkHttpClient.Builder()
+            .addInterceptor(chain -> {
+                Buffer body = new Buffer();
+                chain.request().body().writeTo(body);
+                JsonNode payload = mapper.readTree(body.readUtf8());
+                sentPayloads.add(payload);
+
+                JsonNode reply;
+                if (payload.isArray()) {
+                    ArrayNode replies = mapper.createArrayNode();
+                    for (int i = payload.size() - 1; i >= 0; i--) {
+                        JsonNode node = responder.apply(payload.get(i));
+                        if (node != null) replies.add(node);
+                    }
+                    reply = replies;
+                } else {
+                    reply = responder.apply(payload);
+                }
+                return new Response.Builder()
+                    .request(chain.request())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(httpStatus)
+                    .message("status " + httpStatus)
+                    .body(ResponseBody.create(mapper.writeValueAsString(reply), JSON))
+                    .build();
+            })
+            .build();
+        return new BatchingHttpService("http://localhost:8545", client, WINDOW_MICROS, maxBatchSize,
+            Set.of("eth_call"), singleFlight);
+    }
+
+    private JsonNode read(InputStream in) throws IOException {
+        try (in) {
+            return mapper.readTree(in);
+        }
+    }
+
+    private String request(int id, String method, String param) throws IOException {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("jsonrpc", "2.0");
+        node.put("method", method);
+        node.putArray("params").add(param).add("latest");
+        node.put("id", id);
+        return mapper.writeValueAsString(node);
+    }
+
+    private JsonNode result(JsonNode request) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("jsonrpc", "2.0");
+        node.set("id", request.get("id"));
+        node.put("result", "result-" + request.path("params").get(0).asText());
+        return node;
+    }
+
+    private JsonNode error(JsonNode request, int code, String message) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("jsonrpc", "2.0");
+        node.set("id", request.get("id"));
+        node.putObject("error").put("code", code).put("message", message);
+        return node;
+    }
+}
@@ -0,0 +1,142 @@
+package com.energymarket.config;
+
+import com.energymarket.dto.NFTMetadataDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// Hai replica (hai TwoTierCacheManager) dùng chung một Redis thật
+@Testcontainers(disabledWithoutDocker = true)
+class TwoTierCacheTest {
+    private static final String CACHE = CacheConfig.NFT_METADATA_CACHE;
+
+    @Container
+    private static final GenericContainer<?> REDIS = new GenericContainer<>("redis:7-alpine").withExposedPorts(6379);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<LettuceConnectionFactory> connectionFactories = new ArrayList<>();
+    private final List<RedisMessageListenerContainer> listeners = new ArrayList<>();
+    // Prefix riêng cho mỗi test, các test không thấy key của nhau
+    private final String keyPrefix = "test:" + UUID.randomUUID() + ":";
+
+    private TwoTierCacheManager replicaA;
+    private TwoTierCacheManager replicaB;
+
+    @BeforeEach
+    void setUp() {
+        replicaA = replica();
+        replicaB = replica();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (RedisMessageListenerContainer listener : listeners) {
+            listener.destroy();
+        }
+        connectionFactories.forEach(LettuceConnectionFactory::destroy);
+    }
+
+    @Test
+    void readsThroughToRedisAndKeepsNearCopy() {
+        cache(replicaA).put("cid-1", metadata("v1"));
+
+        // B chưa có bản local: đọc từ Redis rồi giữ lại ở Caffeine
+        assertNull(local(replicaB).get("cid-1"));
+        assertEquals("v1", cache(replicaB).get("cid-1", NFTMetadataDto.class).getDescription());
+        assertEquals("v1", ((NFTMetadataDto) local(replicaB).get("cid-1").get()).getDescription());
+    }
+
+    @Test
+    void putOnOneReplicaInvalidatesNearCopyOnTheOther() {
+        cache(replicaA).put("cid-2", metadata("v1"));
+        assertEquals("v1", cache(replicaB).get("cid-2", NFTMetadataDto.class).getDescription());
+
+        cache(replicaA).put("cid-2", metadata("v2"));
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> local(replicaB).get("cid-2") == null);
+        assertEquals("v2", cache(replicaB).get("cid-2", NFTMetadataDto.class).getDescription());
+    }
+
+    @Test
+    void evictOnOneReplicaRemovesBothTiersEverywhere() {
+        cache(replicaA).put("cid-3", metadata("v1"));
+        assertEquals("v1", cache(replicaB).get("cid-3", NFTMetadataDto.class).getDescription());
+
+        cache(replicaA).evict("cid-3");
+
+        await().atMost(Duration.ofSeconds(5)).until(() -> local(replicaB).get("cid-3") == null);
+        assertNull(cache(replicaB).get("cid-3"));
+    }
+
+    @Test
+    void loaderResultIsSharedThroughRedis() {
+        NFTMetadataDto loaded = cache(replicaA).get("cid-4", () -> metadata("loaded"));
+        assertEquals("loaded", loaded.getDescription());
+
+        // B không gọi loader của mình: giá trị đã có trên Redis
+        NFTMetadataDto fromB = cache(replicaB).get("cid-4", () -> metadata("should-not-load"));
+        assertEquals("loaded", fromB.getDescription());
+    }
+
+    private TwoTierCacheManager replica() {
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(
+            new RedisStandaloneConfiguration(REDIS.getHost(), REDIS.getMappedPort(6379)));
+        connectionFactory.afterPropertiesSet();
+        connectionFactories.add(connectionFactory);
+
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.afterPropertiesSet();
+
+        TwoTierCacheManager manager = new TwoTierCacheManager(new CaffeineCacheManager(CACHE), template, objectMapper,
+            Map.of(CACHE, NFTMetadataDto.class), Map.of(CACHE, Duration.ofMinutes(5)), keyPrefix, keyPrefix + "invalidation");
+
+        RedisMessageListenerContainer listener = new RedisMessageListenerContainer();
+        listener.setConnectionFactory(connectionFactory);
+        listener.addMessageListener(manager, new ChannelTopic(manager.getChannel()));
+        listener.afterPropertiesSet();
+        listener.start();
+        listeners.add(listener);
+        return manager;
+    }
+
+    private static Cache cache(TwoTierCacheManager manager) {
+        return manager.getCache(CACHE);
+    }
+
+    private static Cache local(TwoTierCacheManager manager) {
+        return ((TwoTierCache) manager.getCache(CACHE)).getLocal();
+    }
+
+    private static NFTMetadataDto metadata(String description) {
+        return NFTMetadataDto.builder()
+            .description(description)
+            .image("ipfs://image")
+            .attributes(List.of())
+            .build();
+    }
+}
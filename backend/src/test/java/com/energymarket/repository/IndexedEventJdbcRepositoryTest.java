@@ -0,0 +1,233 @@
+package com.energymarket.repository;
+
+import com.energymarket.repository.IndexedEventJdbcRepository.ListingRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.MintRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.SaleRecord;
+import com.energymarket.repository.IndexedEventJdbcRepository.TransferRecord;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Câu SQL của indexer chạy trên Postgres thật, schema do Hibernate tạo từ entity như khi chạy app (ddl-auto)
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(IndexedEventJdbcRepository.class)
+@Testcontainers(disabledWithoutDocker = true)
+class IndexedEventJdbcRepositoryTest {
+    private static final String ALICE = "0x00000000000000000000000000000000000000a1";
+    private static final String BOB = "0x00000000000000000000000000000000000000b0";
+    private static final String CAROL = "0x00000000000000000000000000000000000000c0";
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", POSTGRES::getJdbcUrl);
+        registry.add("spring.datasource.username", POSTGRES::getUsername);
+        registry.add("spring.datasource.password", POSTGRES::getPassword);
+    }
+
+    @Autowired
+    private IndexedEventJdbcRepository repository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void insertMintsReturnsOnlyNewTokens() {
+        LocalDateTime mintedAt = LocalDateTime.of(2024, 1, 2, 3, 4, 5);
+
+        assertEquals(List.of(big(1), big(2)), repository.insertMints(List.of(mint(1, 10), mint(2, 10)), Map.of(big(10), mintedAt)));
+        // Quét lại cùng range: không thêm dòng, không ghi đè
+        assertEquals(List.of(big(3)), repository.insertMints(List.of(mint(1, 10), mint(3, 11)), Map.of()));
+
+        assertEquals(3, count("nfts"));
+        Map<String, Object> row = nft(1);
+        assertEquals(ALICE, row.get("owner"));
+        assertEquals(ALICE, row.get("seller"));
+        assertEquals(true, row.get("is_listed"));
+        assertEquals(10L, number(row.get("last_event_block")));
+        assertEquals(mintedAt, ((Timestamp) row.get("created_at")).toLocalDateTime());
+    }
+
+    @Test
+    void insertSalesSkipsRowsAlreadyIndexed() {
+        SaleRecord first = sale(1, ALICE, BOB, 20, "0x01", 0);
+        SaleRecord second = sale(2, ALICE, CAROL, 20, "0x01", 1);
+
+        assertEquals(List.of(first, second), repository.insertSales(List.of(first, second), Map.of()));
+
+        SaleRecord third = sale(3, ALICE, BOB, 21, "0x02", 0);
+        assertEquals(List.of(third), repository.insertSales(List.of(second, third, first), Map.of()));
+        assertEquals(3, count("transaction_history"));
+    }
+
+    @Test
+    void insertTransfersSkipsRowsAlreadyIndexed() {
+        TransferRecord first = transfer(1, ALICE, BOB, 20, "0x01", 2);
+
+        assertEquals(List.of(first), repository.insertTransfers(List.of(first), Map.of()));
+        assertEquals(List.of(), repository.insertTransfers(List.of(first), Map.of()));
+        assertEquals(1, count("nft_transfers"));
+    }
+
+    @Test
+    void insertsSpanningSeveralStatements() {
+        // Hơn MAX_ROWS_PER_STATEMENT dòng: được chia thành nhiều câu INSERT
+        List<SaleRecord> sales = new ArrayList<>();
+        for (int i = 0; i < 1203; i++) {
+            sales.add(sale(i, ALICE, BOB, 30, "0x" + Integer.toHexString(i), 0));
+        }
+
+        assertEquals(1203, repository.insertSales(sales, Map.of()).size());
+        assertEquals(0, repository.insertSales(sales, Map.of()).size());
+        assertEquals(1203, count("transaction_history"));
+    }
+
+    @Test
+    void markSoldIgnoresSalesOlderThanLastEvent() {
+        repository.insertMints(List.of(mint(1, 10)), Map.of());
+
+        repository.markSold(List.of(sale(1, ALICE, BOB, 20, "0x01", 0)));
+        // Backfill quét lại range cũ hơn: không làm lùi owner
+        repository.markSold(List.of(sale(1, ALICE, CAROL, 15, "0x02", 0)));
+
+        Map<String, Object> row = nft(1);
+        assertEquals(BOB, row.get("owner"));
+        assertEquals(false, row.get("is_listed"));
+        assertEquals(20L, number(row.get("last_event_block")));
+    }
+
+    @Test
+    void updateOwnersAppliesSameOrNewerBlockOnly() {
+        repository.insertMints(List.of(mint(1, 10)), Map.of());
+        repository.markSold(List.of(sale(1, ALICE, BOB, 20, "0x01", 0)));
+
+        // Transfer của chính giao dịch bán (cùng block) vẫn được ghi
+        repository.updateOwners(List.of(transfer(1, ALICE, BOB, 20, "0x01", 1)));
+        repository.updateOwners(List.of(transfer(1, BOB, CAROL, 25, "0x02", 0)));
+        repository.updateOwners(List.of(transfer(1, ALICE, BOB, 21, "0x03", 0)));
+
+        Map<String, Object> row = nft(1);
+        assertEquals(CAROL, row.get("owner"));
+        assertEquals(25L, number(row.get("last_event_block")));
+        // seller là người mint, không đổi theo owner
+        assertEquals(ALICE, row.get("seller"));
+    }
+
+    @Test
+    void updateListingsIgnoresOlderEventsButAlwaysAppliesChainReads() {
+        repository.insertMints(List.of(mint(1, 10)), Map.of());
+
+        repository.updateListings(List.of(new ListingRecord(big(1), null, big(2_000), big(12))));
+        repository.updateListings(List.of(new ListingRecord(big(1), false, null, big(11))));
+
+        Map<String, Object> row = nft(1);
+        assertEquals(true, row.get("is_listed"));
+        assertEquals(2_000L, number(row.get("price")));
+        assertEquals(12L, number(row.get("last_event_block")));
+
+        // Đối soát (blockNumber null) luôn ghi, không đổi last_event_block
+        repository.updateListings(List.of(new ListingRecord(big(1), false, null, null)));
+
+        row = nft(1);
+        assertEquals(false, row.get("is_listed"));
+        assertEquals(2_000L, number(row.get("price")));
+        assertEquals(12L, number(row.get("last_event_block")));
+    }
+
+    @Test
+    void rollbackRestoresStateBeforeFork() {
+        index();
+
+        assertEquals(Set.of(big(1), big(2)), repository.rollbackAfter(big(15)));
+
+        // Giao dịch bán bị hủy: NFT trở lại người bán và đang niêm yết
+        Map<String, Object> row = nft(1);
+        assertEquals(ALICE, row.get("owner"));
+        assertEquals(ALICE, row.get("seller"));
+        assertEquals(true, row.get("is_listed"));
+        assertEquals(15L, number(row.get("last_event_block")));
+
+        // Token mint sau fork bị xóa, cùng toàn bộ lịch sử sau fork
+        assertEquals(1, count("nfts"));
+        assertEquals(0, count("transaction_history"));
+        assertEquals(0, count("nft_transfers"));
+    }
+
+    @Test
+    void rollbackRestoresOwnerFromFirstTransferAfterFork() {
+        index();
+
+        assertEquals(Set.of(big(1)), repository.rollbackAfter(big(25)));
+
+        Map<String, Object> row = nft(1);
+        assertEquals(BOB, row.get("owner"));
+        assertEquals(ALICE, row.get("seller"));
+        assertEquals(false, row.get("is_listed"));
+        assertEquals(25L, number(row.get("last_event_block")));
+        assertEquals(2, count("nfts"));
+        assertEquals(1, count("transaction_history"));
+        assertEquals(1, count("nft_transfers"));
+    }
+
+    // Token 1: mint ở block 10, bán ALICE -> BOB ở block 20, BOB chuyển cho CAROL ở block 30. Token 2 mint ở block 18
+    private void index() {
+        repository.insertMints(List.of(mint(1, 10), mint(2, 18)), Map.of());
+        List<SaleRecord> sales = List.of(sale(1, ALICE, BOB, 20, "0x01", 1));
+        List<TransferRecord> transfers = List.of(transfer(1, ALICE, BOB, 20, "0x01", 0), transfer(1, BOB, CAROL, 30, "0x02", 0));
+        repository.insertSales(sales, Map.of());
+        repository.markSold(sales);
+        repository.insertTransfers(transfers, Map.of());
+        repository.updateOwners(transfers);
+        assertEquals(CAROL, nft(1).get("owner"));
+    }
+
+    private Map<String, Object> nft(long tokenId) {
+        return jdbcTemplate.queryForMap("SELECT * FROM nfts WHERE token_id = ?", BigDecimal.valueOf(tokenId));
+    }
+
+    private long count(String table) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table, Long.class);
+    }
+
+    private static long number(Object value) {
+        return ((BigDecimal) value).longValueExact();
+    }
+
+    private static BigInteger big(long value) {
+        return BigInteger.valueOf(value);
+    }
+
+    private static MintRecord mint(long tokenId, long block) {
+        return new MintRecord(big(tokenId), ALICE, ALICE, "ipfs://cid-" + tokenId, big(100), big(1_000), "pending", big(block));
+    }
+
+    private static SaleRecord sale(long tokenId, String seller, String buyer, long block, String txHash, int logIndex) {
+        return new SaleRecord(big(tokenId), seller, buyer, big(1_000), big(10), big(block), txHash, logIndex);
+    }
+
+    private static TransferRecord transfer(long tokenId, String from, String to, long block, String txHash, int logIndex) {
+        return new TransferRecord(big(tokenId), from, to, big(block), txHash, logIndex);
+    }
+}
@@ -0,0 +1,225 @@
+package com.energymarket.service;
+
+import com.energymarket.contracts.EnergyLending;
+import com.energymarket.contracts.EnergyMarketplace;
+import com.energymarket.contracts.EnergyNFT;
+import com.energymarket.contracts.LoyaltyProgram;
+import com.energymarket.model.BlockCheckpoint;
+import com.energymarket.repository.BlockCheckpointRepository;
+import com.energymarket.repository.IndexedBlockRepository;
+import com.energymarket.repository.IndexedEventJdbcRepository;
+import com.energymarket.service.BlockchainEventListenerService.JsonRpcException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthLog;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Range eth_getLogs thích ứng của poller: provider giả từ chối range lớn hơn providerLimit
+class BlockchainEventListenerServiceTest {
+    private final Web3j web3j = mock(Web3j.class);
+    private final BlockCheckpointRepository checkpointRepository = mock(BlockCheckpointRepository.class);
+    private final EventLogDispatcher eventDispatcher = mock(EventLogDispatcher.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    // [from, to] của mỗi lệnh eth_getLogs đã gửi
+    private final List<long[]> requestedRanges = new ArrayList<>();
+    private long providerLimit = Long.MAX_VALUE;
+    private Response.Error providerError;
+
+    private BlockchainEventListenerService listenerService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        EnergyMarketplace marketplace = mock(EnergyMarketplace.class);
+        when(marketplace.getContractAddress()).thenReturn("0x00000000000000000000000000000000000000aa");
+        when(checkpointRepository.findById(any())).thenReturn(Optional.of(
+            BlockCheckpoint.builder().lastProcessedBlock(BigInteger.valueOf(9)).build()));
+        when(eventDispatcher.createFilter(any(), any())).thenAnswer(invocation -> {
+            requestedRanges.add(new long[] {
+                ((BigInteger) invocation.getArgument(0)).longValueExact(),
+                ((BigInteger) invocation.getArgument(1)).longValueExact()});
+            return new EthFilter();
+        });
+
+        listenerService = new BlockchainEventListenerService(
+            web3j,
+            marketplace,
+            mock(EnergyNFT.class),
+            mock(EnergyLending.class),
+            mock(LoyaltyProgram.class),
+            mock(MarketplaceService.class),
+            mock(IndexedEventJdbcRepository.class),
+            mock(NFTEnrichmentService.class),
+            mock(MarketplaceEventStreamService.class),
+            checkpointRepository,
+            mock(IndexedBlockRepository.class),
+            new TransactionTemplate(mock(PlatformTransactionManager.class)),
+            eventDispatcher,
+            meterRegistry);
+        ReflectionTestUtils.setField(listenerService, "initialBlockRange", 8L);
+        ReflectionTestUtils.setField(listenerService, "minBlockRange", 1L);
+        ReflectionTestUtils.setField(listenerService, "maxBlockRange", 32L);
+        ReflectionTestUtils.setField(listenerService, "maxRangesPerPoll", 1000);
+        ReflectionTestUtils.setField(listenerService, "confirmations", 0L);
+        ReflectionTestUtils.setField(listenerService, "maxRpcBatchSize", 100);
+        ReflectionTestUtils.setField(listenerService, "reorgWindow", 64L);
+        listenerService.init();
+
+        stubHead(100);
+        doAnswer(invocation -> request(nextLogs())).when(web3j).ethGetLogs(any());
+        EthBlock.Block block = new EthBlock.Block();
+        block.setHash("0x" + "c".repeat(64));
+        EthBlock ethBlock = new EthBlock();
+        ethBlock.setResult(block);
+        doReturn(request(ethBlock)).when(web3j).ethGetBlockByNumber(any(), anyBoolean());
+    }
+
+    @Test
+    void matchesOnlyRangeTooLargeErrors() {
+        assertTrue(BlockchainEventListenerService.isRangeTooLarge(new JsonRpcException("eth_getLogs", -32005, "limit exceeded")));
+        assertTrue(BlockchainEventListenerService.isRangeTooLarge(
+            new JsonRpcException("eth_getLogs", -32602, "Log response size exceeded. You can make eth_getLogs requests with up to a 2K block range")));
+        assertTrue(BlockchainEventListenerService.isRangeTooLarge(
+            new JsonRpcException("eth_getLogs", -32000, "query returned more than 10000 results")));
+        assertTrue(BlockchainEventListenerService.isRangeTooLarge(new IllegalStateException("exceed maximum block range: 5000")));
+
+        assertFalse(BlockchainEventListenerService.isRangeTooLarge(new JsonRpcException("eth_getLogs", -32000, "header not found")));
+        assertFalse(BlockchainEventListenerService.isRangeTooLarge(new IOException("index out of range")));
+        assertFalse(BlockchainEventListenerService.isRangeTooLarge(new IllegalStateException("eth_getBlockByNumber returned no block for [12]")));
+    }
+
+    @Test
+    void classifiesTransientErrors() {
+        assertTrue(BlockchainEventListenerService.isTransient(new IOException("connection reset")));
+        assertTrue(BlockchainEventListenerService.isTransient(new JsonRpcException("eth_getLogs", 429, "rate limit exceeded")));
+        assertFalse(BlockchainEventListenerService.isTransient(new JsonRpcException("eth_getLogs", -32602, "invalid params")));
+    }
+
+    @Test
+    void growsRangeUpToMaxWhileProviderAccepts() {
+        listenerService.pollBlockchainEvents();
+
+        assertEquals(List.of(8L, 16L, 32L, 32L, 3L), sizes());
+        assertContiguous(10, 100);
+        assertEquals(BigInteger.valueOf(100), listenerService.getLastProcessedBlock());
+        assertEquals(32.0, rangeGauge());
+    }
+
+    @Test
+    void shrinksRejectedRangeAndRetriesWithoutGaps() {
+        providerLimit = 4;
+        providerError = new Response.Error(-32005, "query returned more than 10000 results");
+
+        listenerService.pollBlockchainEvents();
+
+        assertEquals(BigInteger.valueOf(100), listenerService.getLastProcessedBlock());
+        // Range bị từ chối được gửi lại từ cùng block đầu với range nhỏ hơn
+        List<long[]> accepted = requestedRanges.stream().filter(range -> range[1] - range[0] + 1 <= 4).toList();
+        assertContiguous(accepted, 10, 100);
+        assertEquals(8L, sizes().get(0));
+        assertEquals(4L, sizes().get(1));
+        assertEquals(10L, requestedRanges.get(1)[0]);
+    }
+
+    @Test
+    void unrelatedErrorDoesNotShrinkRange() {
+        providerLimit = 0;
+        providerError = new Response.Error(-32000, "header not found for range start");
+
+        listenerService.pollBlockchainEvents();
+
+        assertEquals(1, requestedRanges.size());
+        assertEquals(8.0, rangeGauge());
+        assertEquals(BigInteger.valueOf(9), listenerService.getLastProcessedBlock());
+    }
+
+    @Test
+    void rateLimitShrinksAndWaitsForNextPoll() {
+        providerLimit = 0;
+        providerError = new Response.Error(-32005, "project ID request rate limit exceeded");
+
+        listenerService.pollBlockchainEvents();
+
+        assertEquals(1, requestedRanges.size());
+        assertEquals(4.0, rangeGauge());
+    }
+
+    @Test
+    void stopsAfterMaxRangesPerPoll() {
+        ReflectionTestUtils.setField(listenerService, "maxRangesPerPoll", 3);
+
+        listenerService.pollBlockchainEvents();
+
+        assertEquals(3, requestedRanges.size());
+        assertEquals(BigInteger.valueOf(9 + 8 + 16 + 32), listenerService.getLastProcessedBlock());
+    }
+
+    private EthLog nextLogs() {
+        long[] range = requestedRanges.get(requestedRanges.size() - 1);
+        EthLog ethLog = new EthLog();
+        if (range[1] - range[0] + 1 > providerLimit) {
+            ethLog.setError(providerError);
+        } else {
+            ethLog.setResult(List.of());
+        }
+        return ethLog;
+    }
+
+    private List<Long> sizes() {
+        return requestedRanges.stream().map(range -> range[1] - range[0] + 1).toList();
+    }
+
+    private void assertContiguous(long from, long to) {
+        assertContiguous(requestedRanges, from, to);
+    }
+
+    private static void assertContiguous(List<long[]> ranges, long from, long to) {
+        long next = from;
+        for (long[] range : ranges) {
+            assertEquals(next, range[0]);
+            next = range[1] + 1;
+        }
+        assertEquals(to + 1, next);
+    }
+
+    private double rangeGauge() {
+        return meterRegistry.get("indexer.block.range").gauge().value();
+    }
+
+    private void stubHead(long head) throws Exception {
+        EthBlockNumber blockNumber = new EthBlockNumber();
+        blockNumber.setResult("0x" + Long.toHexString(head));
+        doReturn(request(blockNumber)).when(web3j).ethBlockNumber();
+    }
+
+    private static Request<?, ?> request(Object response) throws Exception {
+        Request<?, ?> request = mock(Request.class);
+        doReturn(response).when(request).send();
+        return request;
+    }
+}
@@ -0,0 +1,109 @@
+package com.energymarket.service;
+
+import com.energymarket.service.ContractBatchCaller.ContractCall;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.web3j.abi.TypeEncoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.crypto.Credentials;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.DefaultBlockParameter;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthCall;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Một call lỗi trong batch chỉ làm hỏng kết quả của chính nó, các call còn lại vẫn được decode đúng thứ tự
+class ContractBatchCallerTest {
+    private static final String CONTRACT = "0x00000000000000000000000000000000000000aa";
+    private static final DefaultBlockParameter BLOCK = DefaultBlockParameter.valueOf(BigInteger.valueOf(42));
+
+    private final Web3j web3j = mock(Web3j.class);
+    private final List<BatchRequest> batches = new ArrayList<>();
+    private final List<List<Response<?>>> batchResponses = new ArrayList<>();
+
+    private ContractBatchCaller batchCaller;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        doReturn(mock(Request.class)).when(web3j).ethCall(any(), any());
+        when(web3j.newBatch()).thenAnswer(invocation -> {
+            BatchRequest batch = mock(BatchRequest.class);
+            BatchResponse response = mock(BatchResponse.class);
+            doReturn(batchResponses.get(batches.size())).when(response).getResponses();
+            when(batch.send()).thenReturn(response);
+            batches.add(batch);
+            return batch;
+        });
+
+        batchCaller = new ContractBatchCaller(web3j, Credentials.create("0x" + "1".repeat(64)));
+        ReflectionTestUtils.setField(batchCaller, "maxBatchSize", 2);
+    }
+
+    @Test
+    void failedCallsYieldNullWithoutBreakingTheBatch() throws Exception {
+        // Batch thứ hai: node trả thiếu response cho call cuối
+        batchResponses.add(List.of(value(7), error("execution reverted")));
+        batchResponses.add(List.of(value(9)));
+
+        List<List<Type>> results = batchCaller.call(List.of(call(), call(), call(), call()), BLOCK);
+
+        assertEquals(4, results.size());
+        assertEquals(BigInteger.valueOf(7), results.get(0).get(0).getValue());
+        assertNull(results.get(1));
+        assertEquals(BigInteger.valueOf(9), results.get(2).get(0).getValue());
+        assertNull(results.get(3));
+
+        assertEquals(2, batches.size());
+        verify(batches.get(0), times(2)).add(any());
+        verify(batches.get(1), times(2)).add(any());
+    }
+
+    @Test
+    void emptyReturnDataYieldsNull() throws Exception {
+        // eth_call tới địa chỉ không có code trả về "0x"
+        EthCall empty = new EthCall();
+        empty.setResult("0x");
+        batchResponses.add(Arrays.asList(empty, value(3)));
+
+        List<List<Type>> results = batchCaller.call(List.of(call(), call()), BLOCK);
+
+        assertNull(results.get(0));
+        assertEquals(BigInteger.valueOf(3), results.get(1).get(0).getValue());
+    }
+
+    private static ContractCall call() {
+        return new ContractCall(CONTRACT, new Function("value", List.of(), List.of(new TypeReference<Uint256>() {})));
+    }
+
+    private static EthCall value(long value) {
+        EthCall ethCall = new EthCall();
+        ethCall.setResult("0x" + TypeEncoder.encode(new Uint256(value)));
+        return ethCall;
+    }
+
+    private static EthCall error(String message) {
+        EthCall ethCall = new EthCall();
+        ethCall.setError(new Response.Error(3, message));
+        return ethCall;
+    }
+}
@@ -0,0 +1,143 @@
+package com.energymarket.service;
+
+import com.energymarket.dto.BackfillStatusDto;
+import com.energymarket.service.BlockchainEventListenerService.DecodedRange;
+import com.energymarket.service.BlockchainEventListenerService.JsonRpcException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Fetch chạy song song và có thể xong không theo thứ tự, nhưng commit phải đi đúng thứ tự block
+class EventBackfillServiceTest {
+    private final BlockchainEventListenerService listenerService = mock(BlockchainEventListenerService.class);
+
+    // [from, to] theo thứ tự fetch xong / commit
+    private final List<long[]> fetched = new CopyOnWriteArrayList<>();
+    private final List<long[]> committed = new CopyOnWriteArrayList<>();
+
+    private EventBackfillService backfillService;
+
+    @BeforeEach
+    void setUp() {
+        when(listenerService.getLastProcessedBlock()).thenReturn(BigInteger.valueOf(1_000));
+        doAnswer(invocation -> {
+            DecodedRange range = invocation.getArgument(0);
+            committed.add(new long[] {range.fromBlock().longValueExact(), range.toBlock().longValueExact()});
+            return null;
+        }).when(listenerService).commitRange(any(), anyBoolean());
+
+        backfillService = new EventBackfillService(listenerService);
+        ReflectionTestUtils.setField(backfillService, "chunkSize", 10L);
+        ReflectionTestUtils.setField(backfillService, "concurrency", 4);
+        ReflectionTestUtils.setField(backfillService, "maxAttempts", 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        backfillService.cleanup();
+    }
+
+    @Test
+    void commitsInBlockOrderWhenFetchesFinishOutOfOrder() throws Exception {
+        // Chunk đầu chỉ xong sau khi ba chunk còn lại đã xong
+        CountDownLatch laterChunksDone = new CountDownLatch(3);
+        when(listenerService.fetchAndDecode(any(), any())).thenAnswer(invocation -> {
+            BigInteger start = invocation.getArgument(0);
+            BigInteger end = invocation.getArgument(1);
+            if (start.signum() == 0) {
+                assertTrue(laterChunksDone.await(5, TimeUnit.SECONDS));
+            }
+            fetched.add(new long[] {start.longValueExact(), end.longValueExact()});
+            if (start.signum() != 0) {
+                laterChunksDone.countDown();
+            }
+            return decoded(start, end);
+        });
+
+        BackfillStatusDto status = finish(0, 39);
+
+        assertEquals(0L, fetched.get(fetched.size() - 1)[0]);
+        assertEquals(List.of(0L, 10L, 20L, 30L), committed.stream().map(range -> range[0]).toList());
+        assertContiguous(0, 39);
+        assertNull(status.getError());
+        assertEquals(BigInteger.valueOf(39), status.getCommittedBlock());
+    }
+
+    @Test
+    void splitsRangesTheProviderRejectsAndCommitsThePartsInOrder() throws Exception {
+        when(listenerService.fetchAndDecode(any(), any())).thenAnswer(invocation -> {
+            BigInteger start = invocation.getArgument(0);
+            BigInteger end = invocation.getArgument(1);
+            if (end.subtract(start).longValueExact() + 1 > 4) {
+                throw new JsonRpcException("eth_getLogs", -32005, "query returned more than 10000 results");
+            }
+            return decoded(start, end);
+        });
+
+        BackfillStatusDto status = finish(0, 19);
+
+        assertNull(status.getError());
+        assertContiguous(0, 19);
+        assertTrue(committed.stream().allMatch(range -> range[1] - range[0] + 1 <= 4));
+    }
+
+    @Test
+    void stopsAtTheFirstChunkThatCannotBeFetched() throws Exception {
+        ReflectionTestUtils.setField(backfillService, "concurrency", 1);
+        when(listenerService.fetchAndDecode(any(), any())).thenAnswer(invocation -> {
+            BigInteger start = invocation.getArgument(0);
+            if (start.longValueExact() == 10) {
+                throw new JsonRpcException("eth_getLogs", -32602, "invalid params");
+            }
+            return decoded(start, invocation.getArgument(1));
+        });
+
+        BackfillStatusDto status = finish(0, 29);
+
+        // Lỗi không tạm thời: không thử lại, không commit phần sau chỗ hỏng
+        assertNotNull(status.getError());
+        assertEquals(BigInteger.valueOf(9), status.getCommittedBlock());
+        assertContiguous(0, 9);
+        verify(listenerService, times(1)).fetchAndDecode(BigInteger.valueOf(10), BigInteger.valueOf(19));
+    }
+
+    private BackfillStatusDto finish(long from, long to) {
+        backfillService.startBackfill(BigInteger.valueOf(from), BigInteger.valueOf(to));
+        await().atMost(Duration.ofSeconds(10)).until(() -> !backfillService.getStatus().isRunning());
+        return backfillService.getStatus();
+    }
+
+    private void assertContiguous(long from, long to) {
+        long next = from;
+        for (long[] range : committed) {
+            assertEquals(next, range[0]);
+            next = range[1] + 1;
+        }
+        assertEquals(to + 1, next);
+    }
+
+    private static DecodedRange decoded(BigInteger start, BigInteger end) {
+        return new DecodedRange(start, end, new IndexedEventBatch());
+    }
+}
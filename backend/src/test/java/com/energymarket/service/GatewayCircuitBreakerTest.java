@@ -0,0 +1,85 @@
+package com.energymarket.service;
+
+import com.energymarket.service.GatewayCircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GatewayCircuitBreakerTest {
+    private static final long OPEN_MS = 200;
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        GatewayCircuitBreaker breaker = new GatewayCircuitBreaker(3, 60_000);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        // Thành công ở giữa reset bộ đếm lỗi liên tiếp
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void halfOpenAllowsOneTrialAndClosesOnSuccess() {
+        GatewayCircuitBreaker breaker = opened();
+
+        awaitHalfOpen(breaker);
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void failedTrialReopensImmediately() {
+        GatewayCircuitBreaker breaker = opened();
+
+        awaitHalfOpen(breaker);
+        breaker.onFailure();
+
+        // Một lỗi ở HALF_OPEN là đủ, không cần đủ failureThreshold
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void ignoredTrialReleasesTheSlot() {
+        GatewayCircuitBreaker breaker = opened();
+
+        awaitHalfOpen(breaker);
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onIgnored();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private static GatewayCircuitBreaker opened() {
+        GatewayCircuitBreaker breaker = new GatewayCircuitBreaker(2, OPEN_MS);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        return breaker;
+    }
+
+    // Hết openDuration: lượt tryAcquire đầu tiên chuyển sang HALF_OPEN và nhận lượt thử
+    private static void awaitHalfOpen(GatewayCircuitBreaker breaker) {
+        await().atMost(Duration.ofSeconds(5)).pollInterval(Duration.ofMillis(20)).until(breaker::tryAcquire);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+    }
+}
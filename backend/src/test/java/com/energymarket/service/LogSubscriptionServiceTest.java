@@ -0,0 +1,232 @@
+package com.energymarket.service;
+
+import com.energymarket.contracts.EnergyLending;
+import com.energymarket.contracts.EnergyMarketplace;
+import com.energymarket.contracts.EnergyNFT;
+import com.energymarket.contracts.LoyaltyProgram;
+import com.energymarket.dto.MarketplaceEventDto;
+import com.energymarket.model.BlockCheckpoint;
+import com.energymarket.repository.BlockCheckpointRepository;
+import com.energymarket.repository.IndexedBlockRepository;
+import com.energymarket.repository.IndexedEventJdbcRepository;
+import com.energymarket.service.LogSubscriptionService.PushedLogNotification;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.reactivex.Flowable;
+import io.reactivex.processors.PublishProcessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.protocol.websocket.WebSocketService;
+import org.web3j.protocol.websocket.events.Notification;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Log đẩy qua eth_subscribe: node giả (StubWebSocketService) phát notification, listener ghi vào repository giả
+class LogSubscriptionServiceTest {
+    private static final String HASH_A = "0x" + "a".repeat(64);
+    private static final String HASH_B = "0x" + "b".repeat(64);
+
+    private final Web3j web3j = mock(Web3j.class);
+    private final IndexedEventJdbcRepository eventJdbcRepository = mock(IndexedEventJdbcRepository.class);
+    private final MarketplaceEventStreamService eventStreamService = mock(MarketplaceEventStreamService.class);
+    private final BlockCheckpointRepository checkpointRepository = mock(BlockCheckpointRepository.class);
+    private final EventLogDispatcher eventDispatcher = mock(EventLogDispatcher.class);
+    private final StubWebSocketService node = new StubWebSocketService();
+
+    private BlockchainEventListenerService listenerService;
+    private LogSubscriptionService subscriptionService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        EnergyMarketplace marketplace = mock(EnergyMarketplace.class);
+        when(marketplace.getContractAddress()).thenReturn("0x00000000000000000000000000000000000000aa");
+        when(checkpointRepository.findById(any())).thenReturn(Optional.of(
+            BlockCheckpoint.builder().lastProcessedBlock(BigInteger.valueOf(9)).build()));
+        when(eventDispatcher.dispatch(any(), any())).thenReturn(true);
+        when(eventDispatcher.getAddresses()).thenReturn(List.of("0x00000000000000000000000000000000000000aa"));
+
+        listenerService = new BlockchainEventListenerService(
+            web3j,
+            marketplace,
+            mock(EnergyNFT.class),
+            mock(EnergyLending.class),
+            mock(LoyaltyProgram.class),
+            mock(MarketplaceService.class),
+            eventJdbcRepository,
+            mock(NFTEnrichmentService.class),
+            eventStreamService,
+            checkpointRepository,
+            mock(IndexedBlockRepository.class),
+            new TransactionTemplate(mock(PlatformTransactionManager.class)),
+            eventDispatcher,
+            new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(listenerService, "initialBlockRange", 5L);
+        ReflectionTestUtils.setField(listenerService, "minBlockRange", 1L);
+        ReflectionTestUtils.setField(listenerService, "maxBlockRange", 2000L);
+        ReflectionTestUtils.setField(listenerService, "maxRangesPerPoll", 50);
+        ReflectionTestUtils.setField(listenerService, "confirmations", 2L);
+        ReflectionTestUtils.setField(listenerService, "maxRpcBatchSize", 100);
+        ReflectionTestUtils.setField(listenerService, "reorgWindow", 64L);
+        listenerService.init();
+
+        @SuppressWarnings("unchecked")
+        ObjectProvider<Supplier<WebSocketService>> factory = mock(ObjectProvider.class);
+        when(factory.getIfAvailable()).thenReturn(() -> node);
+        subscriptionService = new LogSubscriptionService(listenerService, eventDispatcher, factory);
+        ReflectionTestUtils.setField(subscriptionService, "reconnectDelayMs", 1000L);
+        ReflectionTestUtils.setField(subscriptionService, "maxReconnectDelayMs", 1000L);
+        subscriptionService.init();
+        assertTrue(node.subscribed.await(5, TimeUnit.SECONDS), "subscription not opened");
+    }
+
+    @AfterEach
+    void tearDown() {
+        subscriptionService.cleanup();
+    }
+
+    @Test
+    void subscribesToLogsOfRegisteredContracts() {
+        assertEquals("eth_subscribe", node.request.getMethod());
+        assertEquals("logs", node.request.getParams().get(0));
+    }
+
+    @Test
+    void removedNotificationDiscardsPushedEventsFromThatBlock() throws Exception {
+        node.push(10, HASH_A, false);
+        verify(eventJdbcRepository, never()).rollbackAfter(any());
+
+        node.push(10, HASH_A, true);
+        // Mỗi log bị loại có một notification: chỉ rollback một lần
+        node.push(10, HASH_A, true);
+
+        verify(eventJdbcRepository, times(1)).rollbackAfter(BigInteger.valueOf(9));
+        verify(eventStreamService).publish(argThat(events ->
+            events.size() == 1 && MarketplaceEventDto.RESYNC.equals(events.get(0).getType())));
+    }
+
+    @Test
+    void removedNotificationForUnknownBlockIsIgnored() throws Exception {
+        node.push(10, HASH_B, false);
+        node.push(10, HASH_A, true);
+
+        verify(eventJdbcRepository, never()).rollbackAfter(any());
+    }
+
+    @Test
+    void pollerDiscardsEveryPushedHashThatIsNotCanonical() throws Exception {
+        // Block thay thế ở cùng độ cao cũng được đẩy về, không có notification removed cho block cũ
+        node.push(10, HASH_A, false);
+        node.push(10, HASH_B, false);
+
+        stubChain(12, 10, HASH_B);
+        listenerService.pollBlockchainEvents();
+
+        verify(eventJdbcRepository).rollbackAfter(BigInteger.valueOf(9));
+        assertEquals(BigInteger.valueOf(10), listenerService.getLastProcessedBlock());
+    }
+
+    @Test
+    void pollerKeepsPushedEventsOfCanonicalBlock() throws Exception {
+        node.push(10, HASH_B, false);
+
+        stubChain(12, 10, HASH_B);
+        listenerService.pollBlockchainEvents();
+
+        verify(eventJdbcRepository, never()).rollbackAfter(any());
+        assertEquals(BigInteger.valueOf(10), listenerService.getLastProcessedBlock());
+    }
+
+    // Chain HTTP: head "head", eth_getLogs trả một log ở block "logBlock" với hash "hash"
+    private void stubChain(long head, long logBlock, String hash) throws Exception {
+        EthBlockNumber blockNumber = new EthBlockNumber();
+        blockNumber.setResult(hex(head));
+        doReturn(request(blockNumber)).when(web3j).ethBlockNumber();
+
+        EthLog ethLog = new EthLog();
+        ethLog.setResult(List.<EthLog.LogResult>of(new EthLog.LogObject(false, "0x0", "0x0", HASH_A, hash, hex(logBlock),
+            "0x00000000000000000000000000000000000000aa", "0x", null, List.of())));
+        doReturn(request(ethLog)).when(web3j).ethGetLogs(any());
+
+        EthBlock.Block block = new EthBlock.Block();
+        block.setHash(hash);
+        EthBlock ethBlock = new EthBlock();
+        ethBlock.setResult(block);
+        doReturn(request(ethBlock)).when(web3j).ethGetBlockByNumber(any(), anyBoolean());
+    }
+
+    private static Request<?, ?> request(Object response) throws Exception {
+        Request<?, ?> request = mock(Request.class);
+        doReturn(response).when(request).send();
+        return request;
+    }
+
+    private static String hex(long value) {
+        return "0x" + Long.toHexString(value);
+    }
+
+    // Node giả: không mở kết nối, notification do test phát qua push()
+    static class StubWebSocketService extends WebSocketService {
+        private final PublishProcessor<PushedLogNotification> notifications = PublishProcessor.create();
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+        private volatile Request<?, ?> request;
+
+        StubWebSocketService() {
+            super("ws://localhost:8546", false);
+        }
+
+        @Override
+        public void connect(Consumer<String> onMessage, Consumer<Throwable> onError, Runnable onClose) {
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Notification<?>> Flowable<T> subscribe(Request request, String unsubscribeMethod, Class<T> responseType) {
+            this.request = request;
+            subscribed.countDown();
+            return (Flowable<T>) notifications;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        // Cùng định dạng JSON node gửi cho eth_subscription
+        void push(long block, String blockHash, boolean removed) throws Exception {
+            String json = """
+                {"jsonrpc":"2.0","method":"eth_subscription","params":{"subscription":"0x1","result":{
+                  "removed":%s,"logIndex":"0x0","transactionIndex":"0x0","transactionHash":"%s",
+                  "blockHash":"%s","blockNumber":"%s","address":"0x00000000000000000000000000000000000000aa",
+                  "data":"0x","topics":[]}}}
+                """.formatted(removed, HASH_A, blockHash, hex(block));
+            notifications.onNext(ObjectMapperFactory.getObjectMapper().readValue(json, PushedLogNotification.class));
+        }
+    }
+}
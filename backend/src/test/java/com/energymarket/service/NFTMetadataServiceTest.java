@@ -0,0 +1,111 @@
+package com.energymarket.service;
+
+import com.energymarket.config.CacheConfig;
+import com.energymarket.dto.NFTMetadataDto;
+import com.energymarket.repository.NFTMetadataRecordRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Negative cache: URI lỗi không gọi lại gateway cho tới hết backoff, backoff tăng gấp đôi sau mỗi lần lỗi
+class NFTMetadataServiceTest {
+    private static final String URI = "ipfs://bafy-broken";
+    private static final long INITIAL_BACKOFF_MS = 300;
+
+    private final IpfsMetadataClient ipfsClient = mock(IpfsMetadataClient.class);
+    private final NFTMetadataRecordRepository metadataRepository = mock(NFTMetadataRecordRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private NFTMetadataService metadataService;
+
+    @BeforeEach
+    void setUp() {
+        when(metadataRepository.findById(any())).thenReturn(Optional.empty());
+        when(ipfsClient.fetch(any())).thenAnswer(invocation -> CompletableFuture.failedFuture(new IOException("gateway timeout")));
+
+        metadataService = new NFTMetadataService(ipfsClient, new ObjectMapper(), metadataRepository,
+            new ConcurrentMapCacheManager(CacheConfig.NFT_METADATA_CACHE), meterRegistry);
+        ReflectionTestUtils.setField(metadataService, "negativeInitialBackoffMs", INITIAL_BACKOFF_MS);
+        ReflectionTestUtils.setField(metadataService, "negativeMaxBackoffMs", 60_000L);
+        ReflectionTestUtils.setField(metadataService, "negativeMaxSize", 100L);
+        metadataService.init();
+    }
+
+    @Test
+    void failedUriIsNotRetriedUntilBackoffExpires() {
+        assertEquals("", metadataService.fetchMetadata(URI).getImage());
+        assertEquals("", metadataService.fetchMetadata(URI).getImage());
+        assertEquals("", metadataService.fetchMetadata(URI).getImage());
+
+        verify(ipfsClient, times(1)).fetch(URI);
+        assertEquals(2.0, meterRegistry.get("metadata.negative_cache.hits").counter().count());
+        assertEquals(1.0, meterRegistry.get("metadata.negative_cache.size").gauge().value());
+    }
+
+    @Test
+    void backoffDoublesAfterEachFailure() throws Exception {
+        metadataService.fetchMetadata(URI);
+        awaitFetches(2);
+
+        // Lần lỗi thứ hai: backoff 2 * INITIAL_BACKOFF_MS, sau INITIAL_BACKOFF_MS vẫn chưa được thử lại
+        Thread.sleep(INITIAL_BACKOFF_MS + 50);
+        metadataService.fetchMetadata(URI);
+        verify(ipfsClient, times(2)).fetch(URI);
+
+        awaitFetches(3);
+    }
+
+    @Test
+    void successClearsTheFailureAndCachesTheResult() {
+        metadataService.fetchMetadata(URI);
+
+        NFTMetadataDto metadata = NFTMetadataDto.builder().image("ipfs://image").description("ok").attributes(List.of()).build();
+        when(ipfsClient.fetch(any())).thenReturn(CompletableFuture.completedFuture(metadata));
+        awaitFetches(2);
+
+        // Lần sau đọc từ cache, không gọi gateway
+        assertEquals("ipfs://image", metadataService.fetchMetadata(URI).getImage());
+        verify(ipfsClient, times(2)).fetch(URI);
+    }
+
+    @Test
+    void otherUrisAreNotBackedOff() {
+        metadataService.fetchMetadata(URI);
+        metadataService.fetchMetadata("ipfs://bafy-other");
+
+        verify(ipfsClient, times(1)).fetch("ipfs://bafy-other");
+    }
+
+    // Gọi lại liên tục cho tới khi hết backoff và gateway được gọi lần thứ "count"
+    private void awaitFetches(int count) {
+        await().atMost(Duration.ofSeconds(5)).pollInterval(Duration.ofMillis(25)).until(() -> {
+            metadataService.fetchMetadata(URI);
+            return fetchCount() >= count;
+        });
+        verify(ipfsClient, times(count)).fetch(URI);
+    }
+
+    private long fetchCount() {
+        return mockingDetails(ipfsClient).getInvocations().stream()
+            .filter(invocation -> invocation.getMethod().getName().equals("fetch"))
+            .count();
+    }
+}
@@ -0,0 +1,163 @@
+package com.energymarket.service;
+
+import com.energymarket.config.CachePolicyProperties;
+import com.energymarket.dto.NFTCursorPageDto;
+import com.energymarket.dto.NFTDto;
+import com.energymarket.dto.NFTMetadataDto;
+import com.energymarket.model.NFT;
+import com.energymarket.repository.NFTRepository;
+import com.energymarket.repository.TransactionHistoryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Keyset getNFTsAfter trên Postgres thật: đi hết các trang theo nextCursor, không trùng, không sót
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Testcontainers(disabledWithoutDocker = true)
+class NFTServiceTest {
+    private static final String ALICE = "0x00000000000000000000000000000000000000a1";
+    private static final String BOB = "0x00000000000000000000000000000000000000b0";
+    private static final int TOKENS = 40;
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", POSTGRES::getJdbcUrl);
+        registry.add("spring.datasource.username", POSTGRES::getUsername);
+        registry.add("spring.datasource.password", POSTGRES::getPassword);
+    }
+
+    @Autowired
+    private NFTRepository nftRepository;
+
+    @Autowired
+    private TransactionHistoryRepository transactionHistoryRepository;
+
+    private NFTService nftService;
+
+    @BeforeEach
+    void setUp() {
+        NFTMetadataService metadataService = mock(NFTMetadataService.class);
+        when(metadataService.fetchMetadataAsync(any(), any()))
+            .thenReturn(CompletableFuture.completedFuture(new NFTMetadataDto()));
+
+        nftService = new NFTService(metadataService, nftRepository, transactionHistoryRepository,
+            new CachePolicyProperties(), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(nftService, "fanoutVirtualThreads", true);
+        ReflectionTestUtils.setField(nftService, "maxConcurrencyPerRequest", 8);
+        ReflectionTestUtils.invokeMethod(nftService, "init");
+
+        // Token id không liên tục (bước 3) để cursor không trùng với số thứ tự
+        for (int i = 1; i <= TOKENS; i++) {
+            nftRepository.save(nft(i * 3L, i % 2 == 0 ? ALICE : BOB, i % 3 == 0 ? BOB : ALICE, i % 4 != 0));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        nftService.cleanup();
+    }
+
+    @Test
+    void pagesThroughEverySectionWithoutDuplicatesOrGaps() {
+        assertEquals(expected(NFT::isListed), collect("home", null, 7));
+        assertEquals(expected(nft -> nft.isListed() && !nft.getOwner().equals(ALICE)), collect("home", ALICE, 7));
+        assertEquals(expected(nft -> nft.isListed() && nft.getOwner().equals(ALICE)), collect("listing", ALICE, 5));
+        assertEquals(
+            expected(nft -> !nft.isListed() && nft.getOwner().equals(ALICE) && !nft.getSeller().equals(ALICE)),
+            collect("purchased", ALICE, 2));
+    }
+
+    @Test
+    void lastPageHasNoCursor() {
+        long listed = expected(NFT::isListed).size();
+
+        NFTCursorPageDto page = nftService.getNFTsAfter("home", null, null, (int) listed);
+
+        assertEquals(listed, page.getItems().size());
+        assertFalse(page.isHasNext());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    void changesBehindTheCursorDoNotShiftLaterPages() {
+        List<Long> all = expected(NFT::isListed);
+
+        NFTCursorPageDto first = nftService.getNFTsAfter("home", null, null, 5);
+        assertTrue(first.isHasNext());
+
+        // Token đã trả ở trang trước bị bán: phân trang OFFSET sẽ bỏ sót một token ở trang sau
+        NFT sold = nftRepository.findById(BigInteger.valueOf(first.getItems().get(0).getId())).orElseThrow();
+        sold.setListed(false);
+        nftRepository.saveAndFlush(sold);
+
+        NFTCursorPageDto second = nftService.getNFTsAfter("home", null, new BigInteger(first.getNextCursor()), 5);
+        assertEquals(all.subList(5, 10), ids(second.getItems()));
+    }
+
+    private List<Long> collect(String section, String account, int limit) {
+        List<Long> seen = new ArrayList<>();
+        BigInteger cursor = null;
+        NFTCursorPageDto page;
+        do {
+            page = nftService.getNFTsAfter(section, account, cursor, limit);
+            assertTrue(page.getItems().size() <= limit);
+            seen.addAll(ids(page.getItems()));
+            cursor = page.getNextCursor() != null ? new BigInteger(page.getNextCursor()) : null;
+        } while (page.isHasNext());
+        return seen;
+    }
+
+    private List<Long> expected(Predicate<NFT> filter) {
+        return nftRepository.findAll().stream()
+            .filter(filter)
+            .map(nft -> nft.getTokenId().longValueExact())
+            .sorted()
+            .toList();
+    }
+
+    private static List<Long> ids(List<NFTDto> items) {
+        return items.stream().map(NFTDto::getId).toList();
+    }
+
+    private static NFT nft(long tokenId, String owner, String seller, boolean listed) {
+        NFT nft = new NFT();
+        nft.setTokenId(BigInteger.valueOf(tokenId));
+        nft.setTokenURI("ipfs://cid-" + tokenId);
+        nft.setEnergyAmount(BigInteger.valueOf(100));
+        nft.setEnergyType("Solar");
+        nft.setOwner(owner);
+        nft.setSeller(seller);
+        nft.setPrice(BigInteger.valueOf(1_000));
+        nft.setListed(listed);
+        nft.setBlockNumber(BigInteger.valueOf(tokenId));
+        return nft;
+    }
+}
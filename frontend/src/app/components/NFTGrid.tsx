@@ -3,7 +3,7 @@ import { NFTGridProps } from "../../types";
 import NFTCard from "./NFTCard";
 import CreateNFTForm from "./CreateNFTForm";
 import { Web3 } from "./Web3";
-import { useBlockchainEvents } from "../../hooks/useBlockchainEvents";
+import { useBlockchainEvents, MarketplaceStreamEvent } from "../../hooks/useBlockchainEvents";
 import { ethers } from "ethers";
 import * as APP_CONSTANT from "../../constants/AppConstant";
 import Bridge from "./Bridge";
@@ -98,13 +98,103 @@ export default function NFTGrid({ section }: NFTGridProps) {
   const { account, marketplace, nft: nftContract, isInitialized } = useContext(Web3);
   const [nfts, setNfts] = useState<NFT[]>([]);
   const [loading, setLoading] = useState(true);
-  const { shouldRefresh, resetRefreshFlag } = useBlockchainEvents(marketplace);
   const [pagination, setPagination] = useState<PaginationState>({
     page: 0,
     size: 8,
     totalElements: 0,
   });
 
+  // Nếu thiếu thông tin, tự gọi Blockchain lấy lại
+  const enrichNFT = useCallback(async (item: NFT): Promise<NFT> => {
+    // Nếu item đã đủ ảnh và mô tả thì không cần gọi lại
+    if (!nftContract || (item.image && item.description && !item.image.includes("gateway.pinata.cloud"))) {
+      return item;
+    }
+
+    try {
+      // Gọi Smart Contract lấy URI gốc
+      const tokenUri = await nftContract.tokenURI(item.id);
+      // Dùng hàm fetch thông minh để lấy JSON
+      const metadata = await fetchMetadata(tokenUri);
+
+      if (metadata) {
+        return {
+          ...item,
+          image: toGatewayUrl(metadata.image), // Ép dùng Gateway nhanh cho ảnh
+          description: metadata.description,
+          attributes: metadata.attributes,
+          title: item.title || `Energy NFT #${item.id}`
+        };
+      }
+    } catch (err) {
+      console.warn(`Failed to enrich NFT #${item.id}`, err);
+    }
+    return item;
+  }, [nftContract]);
+
+  // Áp thay đổi từ SSE vào trang đang hiển thị thay vì mọi client cùng tải lại danh sách.
+  // Trả về false khi cần tải lại: chỉ NFT mới thuộc về chính tài khoản này (mua, nhận, tự mint), và chỉ ở client đó.
+  const me = account?.toLowerCase();
+  const applyStreamEvent = useCallback((event: MarketplaceStreamEvent): boolean => {
+    const id = Number(event.tokenId);
+    const removeFromPage = () => {
+      if (!nfts.some((item) => item.id === id)) return;
+      setNfts((prev) => prev.filter((item) => item.id !== id));
+      setPagination((prev) => ({ ...prev, totalElements: Math.max(0, prev.totalElements - 1) }));
+    };
+
+    switch (event.type) {
+      case "mint": {
+        const mine = !!me && event.owner === me;
+        if (section === APP_CONSTANT.LISTING_MENU_ID) return !mine;
+        if (section !== APP_CONSTANT.HOME_MENU_ID || mine) return true;
+
+        // Token id tăng dần: NFT mới nằm cuối danh sách, chỉ thêm khi đang ở trang cuối còn chỗ
+        const lastPage = pagination.page >= Math.ceil(pagination.totalElements / pagination.size) - 1;
+        setPagination((prev) => ({ ...prev, totalElements: prev.totalElements + 1 }));
+        if (!lastPage || nfts.length >= pagination.size) return true;
+
+        const minted: NFT = {
+          id,
+          title: `Energy NFT #${id}`,
+          price: `${ethers.formatEther(event.price ?? "0")} ETH`,
+          energyAmount: Number(event.energyAmount ?? 0),
+          seller: event.owner ?? "",
+        };
+        enrichNFT(minted).then((item) =>
+          setNfts((prev) => (prev.some((existing) => existing.id === id) ? prev : [...prev, item]))
+        );
+        return true;
+      }
+      case "sale":
+        if (section === APP_CONSTANT.PURCHASED_MENU_ID) {
+          return !(!!me && event.buyer === me && event.seller !== me);
+        }
+        removeFromPage();
+        return true;
+      case "listing":
+        if (event.listed === false) {
+          removeFromPage();
+        } else if (event.price) {
+          const price = `${ethers.formatEther(event.price)} ETH`;
+          setNfts((prev) => prev.map((item) => (item.id === id ? { ...item, price } : item)));
+        }
+        return true;
+      case "transfer":
+        if (!!me && event.owner === me) {
+          return section !== APP_CONSTANT.PURCHASED_MENU_ID;
+        }
+        if (section !== APP_CONSTANT.HOME_MENU_ID) {
+          removeFromPage();
+        }
+        return true;
+      default:
+        return true;
+    }
+  }, [me, section, pagination, nfts, enrichNFT]);
+
+  const { shouldRefresh, resetRefreshFlag } = useBlockchainEvents(marketplace, applyStreamEvent);
+
   const loadNFTs = useCallback(async () => {
     if (!isInitialized) return;
 
@@ -114,6 +204,8 @@ export default function NFTGrid({ section }: NFTGridProps) {
         page: pagination.page.toString(),
         size: pagination.size.toString(),
         section: section,
+        // Tổng số trang chỉ để hiển thị phân trang: chấp nhận số đếm gần đúng, không COUNT mỗi trang
+        count: "approximate",
       });
 
       if (account) {
@@ -133,37 +225,9 @@ export default function NFTGrid({ section }: NFTGridProps) {
       const data = await response.json();
       const rawNfts: NFT[] = data.content;
 
-      // 2. Enrich dữ liệu: Nếu thiếu thông tin, tự gọi Blockchain lấy lại
+      // 2. Enrich dữ liệu
       if (nftContract && rawNfts.length > 0) {
-        const enrichedNfts = await Promise.all(
-          rawNfts.map(async (item) => {
-            // Nếu item đã đủ ảnh và mô tả thì không cần gọi lại
-            if (item.image && item.description && !item.image.includes("gateway.pinata.cloud")) {
-               return item;
-            }
-
-            try {
-              // Gọi Smart Contract lấy URI gốc
-              const tokenUri = await nftContract.tokenURI(item.id);
-              // Dùng hàm fetch thông minh để lấy JSON
-              const metadata = await fetchMetadata(tokenUri);
-
-              if (metadata) {
-                return {
-                  ...item,
-                  image: toGatewayUrl(metadata.image), // Ép dùng Gateway nhanh cho ảnh
-                  description: metadata.description,
-                  attributes: metadata.attributes,
-                  title: item.title || `Energy NFT #${item.id}`
-                };
-              }
-            } catch (err) {
-              console.warn(`Failed to enrich NFT #${item.id}`, err);
-            }
-            return item;
-          })
-        );
-        setNfts(enrichedNfts);
+        setNfts(await Promise.all(rawNfts.map(enrichNFT)));
       } else {
         setNfts(rawNfts);
       }
@@ -177,7 +241,7 @@ export default function NFTGrid({ section }: NFTGridProps) {
     } finally {
       setLoading(false);
     }
-  }, [pagination.page, pagination.size, section, account, isInitialized, nftContract]);
+  }, [pagination.page, pagination.size, section, account, isInitialized, nftContract, enrichNFT]);
 
   // Pagination controls
   const handlePageChange = (newPage: number) => {
@@ -202,10 +266,11 @@ export default function NFTGrid({ section }: NFTGridProps) {
   // Refresh when blockchain events occur
   useEffect(() => {
     if (shouldRefresh) {
+      // Resync do reorg tới mọi client cùng lúc: rải thời điểm tải lại để backend không nhận cùng một đợt
       const timer = setTimeout(() => {
         loadNFTs();
         resetRefreshFlag();
-      }, 5000);
+      }, 2000 + Math.random() * 6000);
 
       return () => clearTimeout(timer);
     }
@@ -1,8 +1,34 @@
-import { useState, useEffect, useCallback } from "react";
+import { useState, useEffect, useCallback, useRef } from "react";
 import { ethers } from "ethers";
 
-export const useBlockchainEvents = (marketplace: ethers.Contract | null) => {
+// Thay đổi do indexer backend đẩy về qua SSE (/api/v1/events/stream), giống MarketplaceEventDto
+export interface MarketplaceStreamEvent {
+  type: "mint" | "sale" | "listing" | "transfer";
+  tokenId: string;
+  owner?: string;
+  seller?: string;
+  buyer?: string;
+  price?: string; // Wei
+  energyAmount?: string;
+  listed?: boolean;
+  blockNumber?: string;
+  txHash?: string;
+}
+
+const DELTA_EVENTS = ["mint", "sale", "listing", "transfer"];
+
+// onEvent: áp thay đổi vào state hiện có, trả về false nếu không áp được và cần tải lại.
+// Ngoài ra chỉ "resync" (client tụt lại hoặc reorg) mới tải lại danh sách
+export const useBlockchainEvents = (
+  marketplace: ethers.Contract | null,
+  onEvent?: (event: MarketplaceStreamEvent) => boolean
+) => {
   const [shouldRefresh, setShouldRefresh] = useState<boolean>(false);
+  const onEventRef = useRef(onEvent);
+
+  useEffect(() => {
+    onEventRef.current = onEvent;
+  }, [onEvent]);
 
   const resetRefreshFlag = useCallback(() => {
     setShouldRefresh(false);
@@ -17,7 +43,36 @@ export const useBlockchainEvents = (marketplace: ethers.Contract | null) => {
   };
 
   useEffect(() => {
-    if (!marketplace) {
+    const apiUrl = process.env.NEXT_PUBLIC_API_URL;
+    if (!apiUrl || typeof EventSource === "undefined") {
+      return;
+    }
+
+    // EventSource tự kết nối lại khi mất mạng
+    const source = new EventSource(`${apiUrl}/api/v1/events/stream`);
+    const handleDelta = (message: MessageEvent) => {
+      try {
+        const event = JSON.parse(message.data) as MarketplaceStreamEvent;
+        if (!onEventRef.current || !onEventRef.current(event)) {
+          setShouldRefresh(true);
+        }
+      } catch (err) {
+        console.warn("Invalid marketplace stream event", err);
+      }
+    };
+    const handleResync = () => setShouldRefresh(true);
+
+    DELTA_EVENTS.forEach((name) => source.addEventListener(name, handleDelta));
+    source.addEventListener("resync", handleResync);
+
+    return () => {
+      source.close();
+    };
+  }, []);
+
+  useEffect(() => {
+    // Chỉ nghe trực tiếp contract khi không có backend stream
+    if (!marketplace || (process.env.NEXT_PUBLIC_API_URL && typeof EventSource !== "undefined")) {
       return;
     }
     const nftMintedAndListed = marketplace.filters.NFTMintedAndListed();